@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import kpl.irc.*;
+import kpl.ircd.*;
+import java.io.*;
+import java.lang.*;
+import java.util.*;
+
+// Runs an IrcdScenario against an IrcConnection over loopback and
+// reports throughput and end to end latency. See scenarios/ for scripts.
+//
+//   java IrcLoadTest scenario-file [-reactor] [-async] [-slow micros]
+//                    [-queue capacity] [-policy name] [-tls]
+//
+// -reactor uses an IrcReactor rather than a thread per connection.
+// -tls connects over TLS, checking the server's throwaway certificate,
+// then reconnects once to see the session is resumed.
+// -async measures through an asynchronous listener, as ServerPane is.
+// -slow makes the listener take that long over each line, to see how
+// the overload policy (see IrcEventBus) copes with a slow GUI.
+public class IrcLoadTest
+{
+  static class Meter extends IrcEventAdapter
+  {
+    long lines, firstLine, lastLine;
+    long[] latencies = new long[4096];
+    int numLatencies;
+    long slowNanos;
+    String overloads = "";
+
+    Meter ( IrcConnection conn )
+    {
+      super(conn);
+    }
+
+    public void onCommand ( IrcCommand c )
+    {
+      long now = System.nanoTime();
+      if(lines == 0)
+        firstLine = now;
+      lastLine = now;
+      lines++;
+      while(slowNanos > 0 && System.nanoTime() - now < slowNanos)
+        ;
+    }
+
+    public void onOverload ( String summary )
+    {
+      overloads += "\nOverloaded: " + summary;
+    }
+
+    public void onPrivMsg ( IrcPrefix who, IrcString where, String msg )
+    {
+      long now = System.nanoTime();
+      if(!msg.startsWith("t="))
+        return;
+      int space = msg.indexOf(' ');
+      long sent;
+      try
+      {
+        sent = Long.parseLong(msg.substring(2, space < 0 ? msg.length() : space));
+      } catch ( NumberFormatException e )
+      {
+        return;
+      }
+      if(msg.indexOf(" step ") == space)
+      {
+        System.out.println("  " + msg.substring(space + 1) + ": at "
+            + (now - firstLine) / 1000000 + "ms, " + lines + " lines");
+        return;
+      }
+      if(numLatencies == latencies.length)
+      {
+        long[] n = new long[latencies.length * 2];
+        System.arraycopy(latencies, 0, n, 0, numLatencies);
+        latencies = n;
+      }
+      latencies[numLatencies++] = now - sent;
+    }
+
+    double percentile ( long[] sorted, double p )
+    {
+      if(sorted.length == 0)
+        return 0;
+      int i = (int)Math.min(sorted.length - 1, Math.floor(p * sorted.length));
+      return sorted[i] / 1000000.0;
+    }
+
+    String report ()
+    {
+      long[] sorted = new long[numLatencies];
+      System.arraycopy(latencies, 0, sorted, 0, numLatencies);
+      Arrays.sort(sorted);
+      double secs = (lastLine - firstLine) / 1e9;
+      return lines + " lines in " + Math.round(secs * 1000) + "ms, "
+        + Math.round(secs > 0 ? lines / secs : 0) + " lines/s\n"
+        + "Message latency over " + numLatencies + " messages: p50 "
+        + percentile(sorted, 0.5) + "ms, p99 " + percentile(sorted, 0.99)
+        + "ms, max " + percentile(sorted, 1) + "ms" + overloads;
+    }
+  }
+
+  // Quits as soon as it is registered, to time a reconnect's handshake
+  static class Quitter extends IrcEventAdapter
+  {
+    Quitter ( IrcConnection conn )
+    {
+      super(conn);
+    }
+
+    public void onWelcome ( IrcString yourNick, String msg )
+    {
+      conn.sendQuit("Reconnect done");
+    }
+  }
+
+  static String describeHandshake ( IrcTls tls )
+  {
+    return tls.getLastHandshakeMillis() + "ms, "
+      + (tls.wasLastHandshakeResumed() ? "resumed" : "full");
+  }
+
+  static public void main ( String [] args )
+  {
+    if(args.length < 1)
+    {
+      System.err.println("Usage: IrcLoadTest scenario-file [-reactor] [-async] [-slow micros]"
+          + " [-queue capacity] [-policy name] [-tls]");
+      System.exit(1);
+    }
+    try
+    {
+      boolean useReactor = false, async = false, useTls = false;
+      long slowMicros = 0;
+      int capacity = 0;
+      Integer policy = null;
+      for(int i=1;i<args.length;i++)
+      {
+        if(args[i].equals("-reactor"))
+          useReactor = true;
+        else if(args[i].equals("-async"))
+          async = true;
+        else if(args[i].equals("-tls"))
+          useTls = true;
+        else if(args[i].equals("-slow") && i+1 < args.length)
+          slowMicros = Long.parseLong(args[++i]);
+        else if(args[i].equals("-queue") && i+1 < args.length)
+          capacity = Integer.parseInt(args[++i]);
+        else if(args[i].equals("-policy") && i+1 < args.length)
+        {
+          policy = IrcEventBus.policyForName(args[++i]);
+          if(policy == null)
+            throw new IllegalArgumentException("No such overload policy: " + args[i]);
+        }
+      }
+
+      IrcdScenario scenario = new IrcdScenario(args[0]);
+      SyntheticIrcd ircd;
+      IrcTls tls = null;
+      if(useTls)
+      {
+        String password = "loadtest";
+        File keyStore = SyntheticIrcd.makeKeyStore(password);
+        ircd = new SyntheticIrcd(scenario, keyStore.getPath(), password);
+        tls = new IrcTls();
+        tls.setTrustStore(keyStore.getPath(), password);
+      } else
+        ircd = new SyntheticIrcd(scenario);
+      ircd.start();
+
+      IrcConnection conn = new IrcConnection("loadtest", "loadtest", "IrcLoadTest");
+      conn.setFloodControl(0, 1);
+      IrcReactor reactor = useReactor ? new IrcReactor() : null;
+      if(useReactor)
+        conn.setReactor(reactor);
+      conn.setTls(tls);
+      if(capacity > 0)
+        conn.getEventBus().setCapacity(capacity);
+      if(policy != null)
+        conn.getEventBus().setOverloadPolicy(policy.intValue());
+      Meter meter = new Meter(conn);
+      meter.slowNanos = slowMicros * 1000;
+      conn.addEventListener(meter, async);
+
+      System.out.println("Running " + scenario.getName()
+          + (useReactor ? " with a reactor" : " with a thread") + ", "
+          + (async ? "async" : "sync") + " listener" + (useTls ? " over TLS" : ""));
+      conn.connect("127.0.0.1", ircd.getPort());
+      conn.waitFinished();
+
+      String tlsReport = null;
+      if(useTls)
+      {
+        if(conn.getLastError() != null)
+          throw conn.getLastError();
+        tlsReport = "TLS handshake " + describeHandshake(tls);
+        // Sharing the IrcTls shares its session cache
+        IrcConnection again = new IrcConnection("loadtest2", "loadtest", "IrcLoadTest");
+        if(useReactor)
+          again.setReactor(reactor);
+        again.setTls(tls);
+        again.addEventListener(new Quitter(again));
+        again.connect("127.0.0.1", ircd.getPort());
+        again.waitFinished();
+        if(again.getLastError() != null)
+          throw again.getLastError();
+        tlsReport += "; reconnect " + describeHandshake(tls);
+      }
+      ircd.close();
+
+      System.out.println(meter.report());
+      if(tlsReport != null)
+        System.out.println(tlsReport);
+      double[] pings = ircd.getPingMillis();
+      double maxPing = 0;
+      for(int i=0;i<pings.length;i++)
+        maxPing = Math.max(maxPing, pings[i]);
+      System.out.println("Server PINGs answered: " + pings.length + ", slowest " + maxPing + "ms");
+      System.out.println("Listeners: " + conn.getEventBus());
+      System.out.println("Prefix cache: " + conn.getPrefixCache());
+      System.out.println(conn.getStats().snapshot());
+    } catch (Exception e)
+    {
+      e.printStackTrace();
+      System.exit(1);
+    }
+    // Timer and reactor threads are left behind
+    System.exit(0);
+  }
+}
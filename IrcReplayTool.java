@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+import ircclient.model.*;
+import kpl.irc.*;
+import java.lang.*;
+
+// Plays a capture made with /record through the whole model, without a
+// GUI, and reports how fast it went. Later runs show the speed once the
+// JIT has warmed up.
+//
+//   java IrcReplayTool capture-file [speed] [runs]
+//
+// A speed of 0, the default, plays as fast as possible; 1 plays at the
+// speed the capture was recorded.
+public class IrcReplayTool
+{
+  static public void main ( String [] args )
+  {
+    if(args.length < 1)
+    {
+      System.err.println("Usage: IrcReplayTool capture-file [speed] [runs]");
+      System.exit(1);
+    }
+    try
+    {
+      double speed = args.length >= 2 ? Double.parseDouble(args[1]) : 0;
+      int runs = args.length >= 3 ? Integer.parseInt(args[2]) : 1;
+
+      for(int i=0;i<runs;i++)
+      {
+        final ServerPane[] serverPane = new ServerPane[1];
+        IrcModel model = new IrcModel();
+        model.addListener(new IrcModelListener()
+            {
+              public void newPane ( Pane p )
+              {
+                if(serverPane[0] == null && p instanceof ServerPane)
+                  serverPane[0] = (ServerPane)p;
+              }
+              public void hasShutDown () {}
+            });
+
+        IrcReplay replay = new IrcReplay(args[0], speed);
+        serverPane[0].replay(replay);
+        replay.waitFinished();
+        System.out.println("Run " + (i+1) + ": " + replay);
+      }
+    } catch (Exception e)
+    {
+      e.printStackTrace();
+      System.exit(1);
+    }
+    // The model leaves timer and reactor threads behind
+    System.exit(0);
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ircclient.model;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import kpl.irc.*;
+import org.openjdk.jmh.annotations.*;
+
+// User list handling in a channel of 10k users, as on the busiest
+// networks. The pane is rebuilt for every iteration so that its
+// scrollback does not grow without bound.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelPaneBenchmark
+{
+  @Param({ "10000" })
+  public int users;
+
+  private ServerPane serverPane;
+  private ChannelPane pane;
+  private IrcString chan;
+  private IrcPrefix[] prefixes;
+  private IrcString[] nicks;
+  private IrcString[] namesChunks;
+  private IrcPrefix setter;
+  private Random random;
+  private int next;
+
+  private static IrcString nick ( int i )
+  {
+    return new IrcString("user" + i + (i % 3 == 0 ? "|away" : ""));
+  }
+
+  @Setup(Level.Trial)
+  public void makeUsers () throws Exception
+  {
+    nicks = new IrcString[users];
+    prefixes = new IrcPrefix[users];
+    for(int i=0;i<users;i++)
+    {
+      nicks[i] = nick(i);
+      prefixes[i] = Corpus.prefixOf(":" + nicks[i] + "!~u" + i + "@host" + (i % 500)
+          + ".example.net QUIT :Quit");
+    }
+    setter = Corpus.prefixOf(":ChanServ!ChanServ@services.example.net MODE #big +o x");
+
+    // RPL_NAMREPLY sized pieces, with the odd op and voice
+    List chunks = new ArrayList();
+    StringBuffer buf = new StringBuffer();
+    for(int i=0;i<users;i++)
+    {
+      String entry = (i % 50 == 0 ? "@" : i % 10 == 0 ? "+" : "") + nicks[i];
+      if(buf.length() + entry.length() + 1 > 400)
+      {
+        chunks.add(new IrcString(buf.toString()));
+        buf.setLength(0);
+      }
+      if(buf.length() > 0)
+        buf.append(' ');
+      buf.append(entry);
+    }
+    chunks.add(new IrcString(buf.toString()));
+    namesChunks = (IrcString[])chunks.toArray(new IrcString[chunks.size()]);
+  }
+
+  @Setup(Level.Iteration)
+  public void makePane ()
+  {
+    final ServerPane[] serverPane = new ServerPane[1];
+    IrcModel model = new IrcModel();
+    model.addListener(new IrcModelListener()
+        {
+          public void newPane ( Pane p )
+          {
+            if(serverPane[0] == null && p instanceof ServerPane)
+              serverPane[0] = (ServerPane)p;
+          }
+          public void hasShutDown () {}
+        });
+    // Joining through the server pane, so it knows about the channel
+    chan = new IrcString("#big");
+    this.serverPane = serverPane[0];
+    this.serverPane.onJoin(setter, chan);
+    pane = (ChannelPane)this.serverPane.channelPanes.get(chan);
+    for(int i=0;i<namesChunks.length;i++)
+      pane.onNamesList(namesChunks[i]);
+    pane.onNamesEnd();
+    random = new Random(1);
+    next = 0;
+  }
+
+  @Benchmark
+  public void onModeOpDeop ()
+  {
+    int i = random.nextInt(users);
+    Vector args = new Vector();
+    args.add(nicks[i]);
+    args.add(nicks[i]);
+    pane.onMode(setter, new IrcString("+o-o"), args);
+  }
+
+  // One line of a repeated NAMES, with the list swapped in after the
+  // last line
+  @Benchmark
+  public void onNamesList ()
+  {
+    pane.onNamesList(namesChunks[next]);
+    next++;
+    if(next == namesChunks.length)
+    {
+      pane.onNamesEnd();
+      next = 0;
+    }
+  }
+
+  // Quit and come back, so the channel stays the same size
+  @Benchmark
+  public void onQuitAndJoin ()
+  {
+    int i = random.nextInt(users);
+    serverPane.onQuit(prefixes[i], "Ping timeout: 256 seconds");
+    serverPane.onJoin(prefixes[i], chan);
+  }
+}
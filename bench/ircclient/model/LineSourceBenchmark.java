@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ircclient.model;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The scrollback as the reader thread appends to it while the GUI reads
+// it back, and each on its own for comparison. The buffer is full, so
+// every append drops a line, as in a busy channel.
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineSourceBenchmark
+{
+  private RingLineSource source;
+  private IrcTextLine line;
+
+  @Setup(Level.Iteration)
+  public void setup ()
+  {
+    source = new RingLineSource(5000);
+    line = new IrcTextLine(IrcTextLine.SPEECH, "alice", "the quick brown fox jumps over the lazy dog");
+    for(int i=0;i<5000;i++)
+      source.addLine(line);
+  }
+
+  private IrcTextLine readLast ()
+  {
+    int n = source.size();
+    return source.getLine(n - 1);
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public void append ()
+  {
+    source.addLine(line);
+  }
+
+  // A screenful of lines from the end, as a repaint would
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(3)
+  public IrcTextLine read ()
+  {
+    IrcTextLine l = null;
+    int n = source.size();
+    for(int i=Math.max(0, n - 50);i<n;i++)
+      l = source.getLine(i);
+    return l;
+  }
+
+  @Benchmark
+  @Group("appendAlone")
+  @GroupThreads(1)
+  public void appendAlone ()
+  {
+    source.addLine(line);
+  }
+
+  @Benchmark
+  @Group("readAlone")
+  @GroupThreads(1)
+  public IrcTextLine readAlone ()
+  {
+    return readLast();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.util.*;
+
+// Lines for the benchmarks to chew on, read from a capture of a busy
+// network (bench/corpus/busy-network.txt unless -Dbench.corpus says
+// otherwise). Lines are returned as raw bytes without their CRLF, as the
+// reader would frame them.
+public class Corpus
+{
+  public static final String DEFAULT = "bench/corpus/busy-network.txt";
+
+  public static byte[][] load () throws IOException
+  {
+    return load(System.getProperty("bench.corpus", DEFAULT));
+  }
+
+  public static byte[][] load ( String fileName ) throws IOException
+  {
+    InputStream in = new BufferedInputStream(new FileInputStream(fileName));
+    ByteArrayOutputStream all = new ByteArrayOutputStream();
+    try
+    {
+      byte[] buf = new byte[65536];
+      int n = in.read(buf);
+      while(n >= 0)
+      {
+        all.write(buf, 0, n);
+        n = in.read(buf);
+      }
+    } finally
+    {
+      in.close();
+    }
+
+    byte[] b = all.toByteArray();
+    List lines = new ArrayList();
+    int start = 0;
+    for(int i=0;i<=b.length;i++)
+    {
+      if(i < b.length && b[i] != '\n')
+        continue;
+      int end = i;
+      if(end > start && b[end-1] == '\r')
+        end--;
+      if(end > start)
+      {
+        byte[] line = new byte[end - start];
+        System.arraycopy(b, start, line, 0, line.length);
+        lines.add(line);
+      }
+      start = i + 1;
+    }
+    return (byte[][])lines.toArray(new byte[lines.size()][]);
+  }
+
+  // For benchmarks outside this package, which can not parse lines
+  public static IrcPrefix prefixOf ( String line ) throws MalformedCommandException
+  {
+    return new IrcCommand(line).getPrefix();
+  }
+
+  // The lines with some other command, eg. to leave out ones a
+  // benchmark can not handle
+  public static byte[][] without ( byte[][] lines, String verb ) throws MalformedCommandException
+  {
+    List out = new ArrayList();
+    for(int i=0;i<lines.length;i++)
+    {
+      if(!new IrcCommand(lines[i], 0, lines[i].length).commandEquals(verb))
+        out.add(lines[i]);
+    }
+    return (byte[][])out.toArray(new byte[out.size()][]);
+  }
+}
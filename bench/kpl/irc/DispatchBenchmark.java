@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A line from the corpus through IrcConnection.onCommand to a listener:
+// table lookup, event bus and the handler's argument decoding. Compare
+// with ParseBenchmark.parse to see what dispatch adds.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark
+{
+  private byte[][] lines;
+  private IrcConnection conn;
+  private int next;
+
+  @Setup
+  public void setup () throws Exception
+  {
+    // There is no server to PONG to
+    lines = Corpus.without(Corpus.load(), "PING");
+    conn = new IrcConnection("kpIRC", "kpirc", "kpIRC");
+    conn.addEventListener(new IrcEventAdapter(conn) {});
+    next = 0;
+  }
+
+  @Benchmark
+  public void parseAndDispatch () throws MalformedCommandException
+  {
+    byte[] l = lines[next];
+    next = next + 1 == lines.length ? 0 : next + 1;
+    conn.onCommand(new IrcCommand(l, 0, l.length));
+  }
+}
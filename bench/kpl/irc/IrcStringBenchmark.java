@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Case-insensitive comparison of nicks, as done on every lookup in a
+// channel's user list. Half the pairs differ only in case.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IrcStringBenchmark
+{
+  private static final int PAIRS = 1024;
+  private IrcString[] a, b;
+  private int next;
+
+  @Setup
+  public void setup ()
+  {
+    Random r = new Random(1);
+    String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ[]\\^_`{|}0123456789";
+    a = new IrcString[PAIRS];
+    b = new IrcString[PAIRS];
+    for(int i=0;i<PAIRS;i++)
+    {
+      StringBuffer s = new StringBuffer();
+      int len = 3 + r.nextInt(12);
+      for(int j=0;j<len;j++)
+        s.append(chars.charAt(r.nextInt(chars.length())));
+      a[i] = new IrcString(s.toString());
+      if(r.nextBoolean())
+        b[i] = new IrcString(flipCase(s.toString()));
+      else
+        b[i] = new IrcString(s.toString() + "_");
+    }
+    next = 0;
+  }
+
+  private static String flipCase ( String s )
+  {
+    StringBuffer out = new StringBuffer(s.length());
+    for(int i=0;i<s.length();i++)
+    {
+      char c = s.charAt(i);
+      out.append(Character.isUpperCase(c) ? Character.toLowerCase(c) : Character.toUpperCase(c));
+    }
+    return out.toString();
+  }
+
+  private int nextIndex ()
+  {
+    int i = next;
+    next = (next + 1) & (PAIRS - 1);
+    return i;
+  }
+
+  @Benchmark
+  public boolean equals ()
+  {
+    int i = nextIndex();
+    return a[i].equals(b[i]);
+  }
+
+  @Benchmark
+  public int compareTo ()
+  {
+    int i = nextIndex();
+    return a[i].compareTo(b[i]);
+  }
+
+  @Benchmark
+  public int hashCodeOf ()
+  {
+    return b[nextIndex()].hashCode();
+  }
+
+  @Benchmark
+  public IrcString construct ()
+  {
+    return new IrcString(a[nextIndex()].s);
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The per-line cost of IrcCommand: framing into arguments alone, then
+// with everything decoded as a listener would.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark
+{
+  private byte[][] lines;
+  private int next;
+
+  @Setup
+  public void setup () throws Exception
+  {
+    lines = Corpus.load();
+    next = 0;
+  }
+
+  private byte[] nextLine ()
+  {
+    byte[] l = lines[next];
+    next = next + 1 == lines.length ? 0 : next + 1;
+    return l;
+  }
+
+  @Benchmark
+  public IrcCommand parse () throws MalformedCommandException
+  {
+    byte[] l = nextLine();
+    return new IrcCommand(l, 0, l.length);
+  }
+
+  @Benchmark
+  public void parseAndDecode ( Blackhole bh ) throws MalformedCommandException
+  {
+    byte[] l = nextLine();
+    IrcCommand c = new IrcCommand(l, 0, l.length);
+    for(int i=0;i<c.getArgCount();i++)
+      bh.consume(c.getArg(i));
+    bh.consume(c.getPrefix());
+  }
+
+  @Benchmark
+  public long parseServerTime () throws MalformedCommandException
+  {
+    byte[] l = nextLine();
+    return new IrcCommand(l, 0, l.length).getServerTime();
+  }
+
+  @Benchmark
+  public IrcCommand parseString () throws MalformedCommandException
+  {
+    return new IrcCommand(new String(nextLine()));
+  }
+}
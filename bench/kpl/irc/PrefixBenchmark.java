@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Building IrcPrefixes from scratch against going through the intern
+// cache, over the prefixes in the corpus.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrefixBenchmark
+{
+  private String[] prefixes;
+  private byte[][] prefixBytes;
+  private IrcPrefixCache cache;
+  private int next;
+
+  @Setup
+  public void setup () throws Exception
+  {
+    byte[][] lines = Corpus.load();
+    List found = new ArrayList();
+    for(int i=0;i<lines.length;i++)
+    {
+      IrcPrefix p = new IrcCommand(lines[i], 0, lines[i].length).getPrefix();
+      if(p != null)
+        found.add(p.toString());
+    }
+    prefixes = (String[])found.toArray(new String[found.size()]);
+    prefixBytes = new byte[prefixes.length][];
+    for(int i=0;i<prefixes.length;i++)
+      prefixBytes[i] = prefixes[i].getBytes("UTF-8");
+    cache = new IrcPrefixCache();
+    next = 0;
+  }
+
+  private int nextIndex ()
+  {
+    int i = next;
+    next = next + 1 == prefixes.length ? 0 : next + 1;
+    return i;
+  }
+
+  @Benchmark
+  public IrcPrefix construct ()
+  {
+    return new IrcPrefix(new StringBuffer(prefixes[nextIndex()]));
+  }
+
+  @Benchmark
+  public IrcPrefix cached ()
+  {
+    byte[] b = prefixBytes[nextIndex()];
+    return cache.get(b, 0, b.length, IrcCaseMapping.RFC1459, null, null);
+  }
+}
@@ -35,6 +35,11 @@ class IrcPage extends Composite implements PaneListener, KeyListener, TraverseLi
   protected CTabItem tabItem;
   protected Pane pane;
   protected CompletionPopup completionPopup;
+  // Model events are saved up below, under the lock of updates, and
+  // shown by flushUpdates at most once a frame
+  protected UpdateCoalescer updates;
+  private int pendingLines;
+  private String pendingTitle;
   
   public IrcPage ( Composite parent, CTabItem tabItem, Pane pane, Display display )
   {
@@ -42,9 +47,37 @@ class IrcPage extends Composite implements PaneListener, KeyListener, TraverseLi
     this.pane = pane;
     this.tabItem = tabItem;
     this.display = display;
+    updates = new UpdateCoalescer(display, new Runnable()
+    {
+      public void run()
+      {
+        if(!isDisposed())
+          flushUpdates();
+      }
+    });
     
     tabItem.setText(pane.getTitle());
   }
+
+  // Shows what has changed since the last call; on the SWT thread.
+  // Subclasses with more to show add to this.
+  protected void flushUpdates ()
+  {
+    int lines;
+    String title;
+    synchronized(updates)
+    {
+      lines = pendingLines;
+      pendingLines = 0;
+      title = pendingTitle;
+      pendingTitle = null;
+    }
+    if(title != null)
+      tabItem.setText(title);
+    // However many lines arrived, one scroll and one paint
+    if(lines > 0)
+      outputText.newLines(lines);
+  }
   
   protected void initCompletionPopup()
   {
@@ -263,31 +296,24 @@ class IrcPage extends Composite implements PaneListener, KeyListener, TraverseLi
   }
 */
 
+  // The line is already in the buffer, which IrcText reads from when
+  // the update is flushed
   public void newLine ( IrcTextLine l )
   {
-    // We must run sync as we do not know
-    // whether or not the buffer will have
-    // been appended by the time this
-    // function is eventually called.
-    display.syncExec ( new Runnable()
-        {
-          public void run()
-          {
-            outputText.newLines(1);
-          }
-        });
+    synchronized(updates)
+    {
+      pendingLines++;
+    }
+    updates.request();
   }
 
   public void titleChanged ( String s )
   {
-    final String title = s;
-    display.asyncExec( new Runnable()
-        {
-          public void run()
-          {
-            tabItem.setText(title);
-          }
-        });
+    synchronized(updates)
+    {
+      pendingTitle = s;
+    }
+    updates.request();
   }
   
   public void doCompletion ()
@@ -397,7 +423,20 @@ class ServerPage extends IrcPage
 
 class ChannelPage extends IrcPage implements ChannelPaneListener
 {
-  private org.eclipse.swt.widgets.List userList;
+  // Virtual, so only rows scrolled into view are given text
+  private Table userTable;
+  // What userTable shows, in IrcChannelUser.RANK_ORDER, and the version
+  // of the UserList it matches; only touched by the SWT thread
+  private ArrayList shownUsers = new ArrayList();
+  private long shownUsersVersion = -1;
+  // More changes than this between frames and the table is rebuilt from
+  // the latest list instead
+  private static final int REBUILD_USER_CHANGES = 64;
+  // Waiting for the next update, guarded by updates
+  private String pendingTopic;
+  private UserList pendingUsers;
+  private boolean rebuildUsers;
+  private ArrayList pendingUserChanges = new ArrayList();
   private Text topicText;
   
   ChannelPage( Composite parent, CTabItem tabItem, ChannelPane channelPane, Display display)
@@ -423,7 +462,14 @@ class ChannelPage extends IrcPage implements ChannelPaneListener
     outputText = new IrcText(comp, channelPane.getIrcTextLineSource()) ;
     
     //    user list
-    userList = new org.eclipse.swt.widgets.List(comp, SWT.MULTI | SWT.V_SCROLL );
+    userTable = new Table(comp, SWT.VIRTUAL | SWT.MULTI | SWT.V_SCROLL );
+    userTable.addListener(SWT.SetData, new Listener()
+    {
+      public void handleEvent ( Event e )
+      {
+        ((TableItem)e.item).setText(shownUsers.get(e.index).toString());
+      }
+    });
     
     int []weights = new int[2];
     weights[0] = 10; weights[1] = 2;
@@ -452,33 +498,168 @@ class ChannelPage extends IrcPage implements ChannelPaneListener
     pane.addPaneListener(this);
   }
 
-  public void onUserListChanged ( final Collection users )
+  // A change to the user list waiting to be shown. from is null for a
+  // user added, to is null for one removed.
+  private static class UserChange
   {
-    display.asyncExec( new Runnable()
+    final UserList users;
+    final IrcChannelUser from, to;
+
+    UserChange ( UserList users, IrcChannelUser from, IrcChannelUser to )
     {
-      public void run()
+      this.users = users;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  public void onUserListChanged ( UserList users )
+  {
+    synchronized(updates)
+    {
+      pendingUserChanges.clear();
+      rebuildUsers = true;
+      notePendingUsers(users);
+    }
+    updates.request();
+  }
+
+  public void onUserAdded ( UserList users, IrcChannelUser u )
+  {
+    addUserChange(new UserChange(users, null, u));
+  }
+
+  public void onUserRemoved ( UserList users, IrcChannelUser u )
+  {
+    addUserChange(new UserChange(users, u, null));
+  }
+
+  public void onUserRenamed ( UserList users, IrcChannelUser from, IrcChannelUser to )
+  {
+    addUserChange(new UserChange(users, from, to));
+  }
+
+  public void onUserModesChanged ( UserList users, IrcChannelUser[] from, IrcChannelUser[] to )
+  {
+    UserChange[] cs = new UserChange[from.length];
+    for(int i=0;i<cs.length;i++)
+      cs[i] = new UserChange(users, from[i], to[i]);
+    addUserChanges(cs);
+  }
+
+  private void addUserChange ( UserChange c )
+  {
+    addUserChanges(new UserChange[] { c });
+  }
+
+  // All for the same list
+  private void addUserChanges ( UserChange[] cs )
+  {
+    synchronized(updates)
+    {
+      // Once the table is to be rebuilt, changes are only good for
+      // their lists
+      if(!rebuildUsers)
       {
-        userList.setItems( new String[0] );
-        
-        Iterator it = users.iterator();
-        while(it.hasNext())
+        for(int i=0;i<cs.length;i++)
+          pendingUserChanges.add(cs[i]);
+        if(pendingUserChanges.size() > REBUILD_USER_CHANGES)
         {
-          IrcChannelUser u = (IrcChannelUser)it.next();
-          userList.add( u.toString() );
+          pendingUserChanges.clear();
+          rebuildUsers = true;
         }
       }
-    });
+      notePendingUsers(cs[0].users);
+    }
+    updates.request();
   }
 
-  public void onTopicChanged ( final String newTopic )
+  // The first list given to a new listener is read before it is
+  // registered, so may arrive after a change made since
+  private void notePendingUsers ( UserList users )
   {
-    display.asyncExec( new Runnable()
+    if(pendingUsers == null || users.getVersion() > pendingUsers.getVersion())
+      pendingUsers = users;
+  }
+
+  public void onTopicChanged ( String newTopic )
+  {
+    synchronized(updates)
     {
-      public void run()
+      pendingTopic = newTopic;
+    }
+    updates.request();
+  }
+
+  protected void flushUpdates ()
+  {
+    super.flushUpdates();
+
+    String topic;
+    UserList users;
+    UserChange[] changes;
+    boolean rebuild;
+    synchronized(updates)
+    {
+      topic = pendingTopic;
+      pendingTopic = null;
+      users = pendingUsers;
+      pendingUsers = null;
+      changes = (UserChange[])pendingUserChanges.toArray(new UserChange[pendingUserChanges.size()]);
+      pendingUserChanges.clear();
+      rebuild = rebuildUsers;
+      rebuildUsers = false;
+    }
+    if(topic != null)
+      topicText.setText(topic);
+    if(users == null || users.getVersion() <= shownUsersVersion)
+      return;
+
+    userTable.setRedraw(false);
+    if(rebuild)
+    {
+      Object[] a = users.toArray();
+      Arrays.sort(a, IrcChannelUser.RANK_ORDER);
+      shownUsers = new ArrayList(Arrays.asList(a));
+      userTable.setItemCount(a.length);
+      userTable.clearAll();
+    } else
+    {
+      for(int i=0;i<changes.length;i++)
       {
-        topicText.setText(newTopic);
+        UserChange c = changes[i];
+        if(c.users.getVersion() <= shownUsersVersion)
+          continue;
+        if(c.from != null)
+          removeShownUser(c.from);
+        if(c.to != null)
+          addShownUser(c.to);
       }
-    });
+    }
+    shownUsersVersion = users.getVersion();
+    userTable.setRedraw(true);
+  }
+
+  // The rows below move down one; the table asks for the new row's text
+  // only if it is in view
+  private void addShownUser ( IrcChannelUser u )
+  {
+    int i = Collections.binarySearch(shownUsers, u, IrcChannelUser.RANK_ORDER);
+    if(i >= 0)
+      return;
+    i = -i - 1;
+    shownUsers.add(i, u);
+    new TableItem(userTable, SWT.NONE, i);
+    userTable.clear(i);
+  }
+
+  private void removeShownUser ( IrcChannelUser u )
+  {
+    int i = Collections.binarySearch(shownUsers, u, IrcChannelUser.RANK_ORDER);
+    if(i < 0)
+      return;
+    shownUsers.remove(i);
+    userTable.remove(i);
   }
 }
 
@@ -36,8 +36,11 @@ public class IrcText extends Canvas implements PaintListener, SelectionListener,
   // thumbSize is constantly 1. This is to avoid issues with having to calculate
   // varying line heights for all the lines in the buffer.
   //
-  // minimum is constantly zero, and maximum is lineSource.size().
+  // minimum is lineSource.getFirstIndex(), and maximum is lineSource.size(),
+  // so a line's index is the same however many have been dropped.
   // lineSource[selection] is the line drawn at the bottom of the control.
+  // The source may drop lines at any time, so getLine can return null for
+  // a line older than the minimum says.
   private ScrollBar scrollBar;
   // Used purely in widgetSelected to determine how far we scrolled
   private int lastScrollPosition;
@@ -65,8 +68,11 @@ public class IrcText extends Canvas implements PaintListener, SelectionListener,
     scrollBar.setThumb(1);
 
     if(lineSource.size() > 0)
+    {
+      scrollBar.setMaximum(lineSource.size());
+      scrollBar.setMinimum(lineSource.getFirstIndex());
       scrollBar.setSelection(lineSource.size()-1);
-    else
+    } else
       scrollBar.setSelection(0);
     
     // an empty lineSource will mean an effective lastScrollPosition
@@ -100,6 +106,8 @@ public class IrcText extends Canvas implements PaintListener, SelectionListener,
     while( y > c.y && i >= 0)
     {
       IrcTextLine l = lineSource.getLine(i);
+      if(l == null)
+        break;
       WrappedLine wl = wrapIrcTextLine ( gc, l );
       wrappedLines.add(wl);
       y -= wl.size.y;
@@ -136,6 +144,8 @@ public class IrcText extends Canvas implements PaintListener, SelectionListener,
       if(index < 0)
         break;
       IrcTextLine l = lineSource.getLine(index);
+      if(l == null)
+        break;
       
       if( i < wrappedLines.size() )
       {
@@ -234,6 +244,12 @@ public class IrcText extends Canvas implements PaintListener, SelectionListener,
     {
       int index = getLastVisibleLineIndex() - i;
       IrcTextLine l = lineSource.getLine(index);
+      if(l == null)
+      {
+        // Dropped already, so everything older has gone too
+        y = c.y;
+        break;
+      }
       WrappedLine wl = wrapIrcTextLine( gc, l );
       
       wrappedLines.add(i, wl);
@@ -287,16 +303,28 @@ public class IrcText extends Canvas implements PaintListener, SelectionListener,
   public void newLines ( int n )
   {
     int oldMax = scrollBar.getMaximum();
-    scrollBar.setMaximum(lineSource.size());
+    int oldSelection = scrollBar.getSelection();
+    boolean atBottom = oldSelection == oldMax - 1;
+    // Maximum first, as the minimum may pass the old maximum
+    int end = lineSource.size();
+    scrollBar.setMaximum(end);
+    scrollBar.setMinimum(Math.min(lineSource.getFirstIndex(), end - 1));
     
     // If scroll bar was at the bottom, keep it at the bottom
-    if(getLastVisibleLineIndex() == oldMax - 1)
+    if(atBottom)
     {
-      scrollBar.setSelection(lineSource.size() - 1);
+      scrollBar.setSelection(end - 1);
       
       // Have the scrollbar event handler redraw the appropriate
       // area of the screen
       widgetSelected(null);
+    } else if(scrollBar.getSelection() != oldSelection)
+    {
+      // The lines being looked at have been dropped, and the scroll bar
+      // has moved up to the oldest left
+      lastScrollPosition = scrollBar.getSelection();
+      initWrappedLines();
+      redraw();
     }
   }
  
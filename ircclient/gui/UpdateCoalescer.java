@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package ircclient.gui;
+import org.eclipse.swt.widgets.*;
+
+/**
+ * Runs a page's flush on the SWT thread after the model asks for it,
+ * but no more than once a frame. The model's threads only note what
+ * changed and call request, which never waits for the SWT thread; any
+ * number of requests before the flush runs are served by one flush.
+ */
+class UpdateCoalescer implements Runnable
+{
+  // Least time between two flushes, about 60 a second
+  static final long FRAME_NANOS = 16000000L;
+
+  private final Display display;
+  private final Runnable flush;
+  // Whether a run is queued and yet to start flushing, guarded by this
+  private boolean requested;
+  // When the last flush started, only touched by the SWT thread
+  private long lastFlush;
+
+  UpdateCoalescer ( Display display, Runnable flush )
+  {
+    this.display = display;
+    this.flush = flush;
+    lastFlush = System.nanoTime() - FRAME_NANOS;
+  }
+
+  // May be called from any thread
+  void request ()
+  {
+    synchronized(this)
+    {
+      if(requested)
+        return;
+      requested = true;
+    }
+    if(!display.isDisposed())
+      display.asyncExec(this);
+  }
+
+  public void run ()
+  {
+    long wait = lastFlush + FRAME_NANOS - System.nanoTime();
+    if(wait > 0)
+    {
+      // Come back when the frame is over, by which time more may have
+      // changed
+      display.timerExec((int)((wait + 999999) / 1000000), this);
+      return;
+    }
+    // Cleared first so a change made while flushing asks again
+    synchronized(this)
+    {
+      requested = false;
+    }
+    lastFlush = System.nanoTime();
+    flush.run();
+  }
+}
@@ -24,7 +24,12 @@ import kpl.irc.*;
 public class ChannelPane extends Pane
 {
   IrcString chanName;
-  TreeMap users;
+  // Replaced rather than changed, so listeners may keep any list they
+  // are given
+  volatile UserList users;
+  // Users from the NAMES replies so far, swapped in for users at the end
+  // of the list. Null when no NAMES reply is being read.
+  TreeMap stagedUsers;
   String topic;
   ServerPane serverPane;
   Vector channelPaneListeners;
@@ -34,20 +39,31 @@ public class ChannelPane extends Pane
   String key;
   
   public boolean inChannel;
+  // Set when the connection drops while we are in the channel, so the
+  // server pane knows to rejoin it after reconnecting
+  boolean rejoin;
   
   ChannelPane ( IrcModel model, IrcString cn, ServerPane sp, int index )
   {
-    super(model, cn.toString(), index);
+    super(model, cn.toString(), index, getScrollback("channel", 5000));
     this.chanName = cn;
     this.serverPane = sp;
     
     inChannel = true;
 
     channelPaneListeners = new Vector();
-    users = new TreeMap();
+    users = UserList.EMPTY;
     modes = new ModeSet();
     topic = "";
     // Todo: Add to commandMap 
+    commandMap.put("charset", new PaneCommand(0) {
+      public void run ( String [] args ) throws UserInputException
+      {
+        if(args.length >= 1)
+          serverPane.setCharset(chanName, args[0]);
+        printLine(IrcTextLine.INFO, "Charset is " + serverPane.charsets.describe(chanName));
+      }
+    });
     commandMap.put("part", new PaneCommand(0) {
       public void run ( String [] args ) throws UserInputException
       {
@@ -70,7 +86,7 @@ public class ChannelPane extends Pane
     channelPaneListeners.add(l);
 
     l.onTopicChanged ( topic );
-    l.onUserListChanged ( users.values () );
+    l.onUserListChanged ( users );
   }
 
   public void userListChanged ()
@@ -78,9 +94,34 @@ public class ChannelPane extends Pane
     for(int i=0;i<channelPaneListeners.size();i++)
     {
       ChannelPaneListener l = (ChannelPaneListener)channelPaneListeners.elementAt(i);
-      l.onUserListChanged ( users.values() );
+      l.onUserListChanged ( users );
     }
   }
+
+  // The rest tell listeners of one change, after users has been updated
+  private void userAdded ( IrcChannelUser u )
+  {
+    for(int i=0;i<channelPaneListeners.size();i++)
+      ((ChannelPaneListener)channelPaneListeners.elementAt(i)).onUserAdded(users, u);
+  }
+
+  private void userRemoved ( IrcChannelUser u )
+  {
+    for(int i=0;i<channelPaneListeners.size();i++)
+      ((ChannelPaneListener)channelPaneListeners.elementAt(i)).onUserRemoved(users, u);
+  }
+
+  private void userRenamed ( IrcChannelUser from, IrcChannelUser to )
+  {
+    for(int i=0;i<channelPaneListeners.size();i++)
+      ((ChannelPaneListener)channelPaneListeners.elementAt(i)).onUserRenamed(users, from, to);
+  }
+
+  private void userModesChanged ( IrcChannelUser[] from, IrcChannelUser[] to )
+  {
+    for(int i=0;i<channelPaneListeners.size();i++)
+      ((ChannelPaneListener)channelPaneListeners.elementAt(i)).onUserModesChanged(users, from, to);
+  }
  
   public void topicChanged ()
   {
@@ -100,26 +141,47 @@ public class ChannelPane extends Pane
   {
     inChannel = false;
     changeTitle("(" + chanName.toString() + ")");
-    users = new TreeMap();
+    forgetUsers(users);
+    if(stagedUsers != null)
+      forgetUsers(stagedUsers.values());
+    users = users.emptied();
+    stagedUsers = null;
     userListChanged();
   }
+
+  // Tell the registry we no longer share this channel with them
+  private void forgetUsers ( Collection c )
+  {
+    Iterator it = c.iterator();
+    while(it.hasNext())
+      serverPane.users.left(((IrcChannelUser)it.next()).user, this);
+  }
  
   public void ensureInChannel ()
   {
     if(inChannel)
       return;
     inChannel = true;
+    rejoin = false;
     changeTitle(chanName.toString());
   }
   
   public void onJoin ( IrcPrefix who )
   {
-    if(users.containsKey(who.getNick()))
+    if(users.get(who.getNick()) != null)
       return;
-    users.put( who.getNick(), new IrcChannelUser( who.getNick() ));
+    IrcUser user = serverPane.users.intern(who.getNick());
+    user.setUserHost(who.getUser() != null ? who.getUser().toString() : null,
+        who.getHost() != null ? who.getHost().toString() : null);
+    IrcChannelUser u = new IrcChannelUser( user, serverPane.getModeTable() );
+    users = users.put( u );
+    // A NAMES reply under way was made before they came
+    if(stagedUsers != null)
+      stagedUsers.put(u.getNick(), u);
+    serverPane.users.joined(user, this);
     
     printLine( IrcTextLine.JOIN, "" + who.getNick() + " (" + who.getUser() + "@" + who.getHost() + ") has joined " + chanName);
-    userListChanged();
+    userAdded(u);
   }
  
   public void onPrivMsg ( IrcPrefix who, String msg )
@@ -129,170 +191,217 @@ public class ChannelPane extends Pane
   
   public void onPart ( IrcPrefix who )
   {
-    if(!users.containsKey(who.getNick()))
+    IrcChannelUser u = users.get(who.getNick());
+    IrcChannelUser staged = unstage(who.getNick());
+    if(u == null && staged == null)
       return;
-    users.remove ( who.getNick() );
+    serverPane.users.left(u != null ? u.user : staged.user, this);
 
     printLine(IrcTextLine.LEAVE, "" + who.getNick() + " has left " + chanName);
-    userListChanged();
+    if(u != null)
+    {
+      users = users.remove(who.getNick());
+      userRemoved(u);
+    }
+  }
+
+  // Takes nick out of a NAMES reply under way, returning who was there
+  private IrcChannelUser unstage ( IrcString nick )
+  {
+    return stagedUsers != null ? (IrcChannelUser)stagedUsers.remove(nick) : null;
   }
   
-  public void onNick ( IrcPrefix who, IrcString nick )
+  // Only called for channels the user is in, before the registry knows
+  // them by the new nick
+  void onNick ( IrcUser user, IrcString nick )
   {
-    if(!users.containsKey(who.getNick()))
+    IrcChannelUser staged = unstage(user.nick);
+    if(staged != null)
+      stagedUsers.put(nick, staged.withNick(nick));
+    IrcChannelUser u = users.get(user.nick);
+    if(u == null && staged == null)
       return;
-    
-    IrcChannelUser u = (IrcChannelUser)users.get(who.getNick());
-    u.nick = nick;
-    
-    users.remove(who.getNick());
-    users.put(nick, u);
-    
-    printLine(IrcTextLine.INFO, "" + who.getNick() + " is now known as " + nick);
-    userListChanged();
+
+    printLine(IrcTextLine.INFO, "" + user.nick + " is now known as " + nick);
+    if(u != null)
+    {
+      IrcChannelUser renamed = u.withNick(nick);
+      users = users.remove(user.nick).put(renamed);
+      userRenamed(u, renamed);
+    }
   }
  
-  public void onQuit ( IrcPrefix who, String why )
+  // Only called for channels the user is in; the server pane tells the
+  // registry
+  void onQuit ( IrcUser user, String why )
   {
-    if(!users.containsKey(who.getNick()))
+    IrcChannelUser u = users.get(user.nick);
+    IrcChannelUser staged = unstage(user.nick);
+    if(u == null && staged == null)
       return;
 
-    users.remove( who.getNick() );
     if(why.equals(""))
     {
-      printLine(IrcTextLine.LEAVE, "" + who.getNick() + " quit");
+      printLine(IrcTextLine.LEAVE, "" + user.nick + " quit");
     } else
     {
-      printLine(IrcTextLine.LEAVE, "" + who.getNick() + " quit (" + why + ")");
+      printLine(IrcTextLine.LEAVE, "" + user.nick + " quit (" + why + ")");
+    }
+    if(u != null)
+    {
+      users = users.remove(user.nick);
+      userRemoved(u);
     }
-    userListChanged();
   }
   
+  // One RPL_NAMREPLY. Nothing changes until onNamesEnd, so a channel of
+  // thousands of users, many replies long, is one user list update.
+  // The registry hears of them now, so JOIN, PART, NICK and QUIT before
+  // then reach the staged list as well as the shown one.
   public void onNamesList ( IrcString namesList )
   {
-    String []names = namesList.toString().split("( )+");
+    String names = namesList.toString();
+    IrcModeTable table = serverPane.getModeTable();
+    if(stagedUsers == null)
+      stagedUsers = new TreeMap();
+
+    int start = 0;
+    while(start < names.length())
+    {
+      int end = names.indexOf(' ', start);
+      if(end == -1)
+        end = names.length();
+      if(end > start)
+      {
+        IrcChannelUser u = new IrcChannelUser(names, start, end, namesList.getCaseMapping(), table, serverPane.users);
+        stagedUsers.put(u.getNick(), u);
+        serverPane.users.joined(u.user, this);
+      }
+      start = end + 1;
+    }
+  }
 
-    for(int i=0;i<names.length;i++)
+  // RPL_ENDOFNAMES: the replies since the last one are the whole list
+  public void onNamesEnd ()
+  {
+    if(stagedUsers == null)
+      return;
+    Iterator it = users.iterator();
+    while(it.hasNext())
     {
-      IrcString name = new IrcString(names[i]);
-      IrcChannelUser u = new IrcChannelUser(name);
-      users.put(u.nick, u);
+      IrcChannelUser u = (IrcChannelUser)it.next();
+      if(stagedUsers.get(u.getNick()) == null)
+        serverPane.users.left(u.user, this);
     }
+    users = UserList.fromSorted(stagedUsers.values(), users.getVersion() + 1);
+    stagedUsers = null;
     userListChanged();
   }
   
-  public void onMode ( IrcPrefix who, IrcString modeString, Vector args )
+  // What prefix and list modes are called in messages; others are
+  // shown as the mode letter
+  private static String describePrefixMode ( char mode )
   {
-    StringBuffer buf = new StringBuffer(modeString.toString());
-    boolean addMode = true;
-    char c;
-    Iterator it = args.iterator();
-    IrcString setter;
+    switch(mode)
+    {
+      case 'q': return "owner status";
+      case 'a': return "admin status";
+      case 'o': return "ops";
+      case 'h': return "halfops";
+      case 'v': return "voice";
+    }
+    return "mode " + mode;
+  }
 
-    if(who.isServerName())
-      setter = who.getServerName();
+  private static String describeListMode ( char mode )
+  {
+    switch(mode)
+    {
+      case 'b': return "ban";
+      case 'e': return "ban exception";
+      case 'I': return "invite exception";
+      case 'q': return "quiet";
+    }
+    return "mode " + mode;
+  }
+
+  // Listeners hear of each user whose rank changes, as the change is
+  // made
+  public void onMode ( IrcPrefix who, IrcString modeString, Vector args )
+  {
+    // No prefix means the server we are connected to
+    String setter;
+    if(who == null)
+      setter = serverPane.hostName;
+    else if(who.isServerName())
+      setter = who.getServerName().toString();
     else
-      setter = who.getNick();
-    
-    while(buf.length() > 0)
+      setter = who.getNick().toString();
+
+    // One MODE line is one update to the user list, however many users
+    // it changes
+    List from = new ArrayList(), to = new ArrayList();
+    IrcModeChange[] changes = serverPane.getModeTable().parse(modeString, args);
+    for(int i=0;i<changes.length;i++)
     {
-      c = buf.charAt(0);
-      buf.deleteCharAt(0);
-      switch(c)
+      IrcModeChange m = changes[i];
+      char c = m.getMode();
+      boolean add = m.isAdding();
+      switch(m.getType())
       {
-        case '+': addMode = true; break;
-        case '-': addMode = false; break;
+        case IrcModeTable.PREFIX:
+          IrcChannelUser u = users.get(m.getParam());
+          IrcChannelUser changed = u != null ? u.withPrefixMode(c, add) : null;
+          if(changed != u)
+          {
+            users = users.put(changed);
+            from.add(u);
+            to.add(changed);
+            printLine(IrcTextLine.INFO, "" + setter + (add ? " gives " : " takes ")
+                + describePrefixMode(c) + (add ? " to " : " from ") + m.getParam());
+          }
+          break;
+        case IrcModeTable.LIST:
+          // We don't keep track of bans and the like
+          printLine(IrcTextLine.INFO, "" + setter + (add ? " sets " : " lifts ")
+              + describeListMode(c) + " on " + m.getParam());
+          break;
         default:
-          if(!addMode)
+          if(c == 'k' && add)
           {
-            if((c == 'o' || c == 'v' || c == 'b') && !it.hasNext())
-              break;
-            switch(c)
+            key = m.getParam().toString();
+            printLine(IrcTextLine.INFO, "" + setter + " sets key to " + key);
+          } else if(c == 'k')
+          {
+            key = null;
+            printLine(IrcTextLine.INFO, "" + setter + " removes key");
+          } else if(c == 'l' && add)
+          {
+            try
             {
-              case 'l': 
-                printLine(IrcTextLine.INFO, "" + setter + " removes user limit");
-                modes.unsetMode('l');
-                break;
-              case 'k':
-                printLine(IrcTextLine.INFO, "" + setter + " removes key");
-                modes.unsetMode('k');
-                break;
-              case 'o':
-                IrcString n = (IrcString)it.next();
-                if(users.containsKey(n))
-                {
-                  ((IrcChannelUser)users.get(n)).channelModes.unsetMode('o');
-                  printLine(IrcTextLine.INFO, "" + setter + " takes ops from " + n);
-                  userListChanged();
-                }
-                break;
-              case 'v':
-                IrcString ni = (IrcString)it.next();
-                if(users.containsKey(ni))
-                {
-                  ((IrcChannelUser)users.get(ni)).channelModes.unsetMode('v');
-                  printLine(IrcTextLine.INFO, "" + setter + " takes voice from " + ni);
-                  userListChanged();
-                }
-                break;
-              case 'b':
-                printLine(IrcTextLine.INFO, "" + setter + " lifts ban on " + it.next());
-                break;
-              default:
-                printLine(IrcTextLine.INFO, "" + setter + " sets mode -" + c);
-                modes.unsetMode(c);
-                break;
+              userLimit = Integer.parseInt(m.getParam().toString());
+            } catch ( NumberFormatException e )
+            {
+              break;
             }
+            printLine(IrcTextLine.INFO, "" + setter + " sets user limit to " + userLimit);
+          } else if(c == 'l')
+          {
+            printLine(IrcTextLine.INFO, "" + setter + " removes user limit");
           } else
           {
-            if((c == 'l' || c == 'k' || c == 'o' || c == 'v' || c == 'b') && !it.hasNext())
-              break;
-            switch(c)
-            {
-              case 'l': 
-                try
-                {
-                  userLimit = Integer.parseInt(((IrcString)it.next()).toString());
-                  printLine(IrcTextLine.INFO, "" + setter + " sets user limit to " + userLimit);
-                  modes.setMode('l');
-                } catch ( NumberFormatException e ) {}
-                break;
-              case 'k':
-                key = ((IrcString)it.next()).toString();
-                printLine(IrcTextLine.INFO, "" + setter + " sets key to " + key);
-                modes.setMode('k');
-                break;
-              case 'o':
-                IrcString n = (IrcString)it.next();
-                if(users.containsKey(n))
-                {
-                  ((IrcChannelUser)users.get(n)).channelModes.setMode('o');
-                  printLine(IrcTextLine.INFO, "" + setter + " gives ops to " + n);
-                }
-                userListChanged();
-                break;
-              case 'v':
-                IrcString ni = (IrcString)it.next();
-                if(users.containsKey(ni))
-                {
-                  ((IrcChannelUser)users.get(ni)).channelModes.setMode('v');
-                  printLine(IrcTextLine.INFO, "" + setter + " gives voice to " + ni);
-                }
-                userListChanged();
-                break;
-              case 'b':
-                // We don't keep track of bans
-                printLine(IrcTextLine.INFO, "" + setter + " sets ban on " + it.next());
-                break;
-              default:
-                printLine(IrcTextLine.INFO, "" + setter + " sets mode +" + c);
-                modes.setMode(c);
-                break;
-            }
+            printLine(IrcTextLine.INFO, "" + setter + " sets mode " + m);
           }
+          if(add)
+            modes.setMode(c);
+          else
+            modes.unsetMode(c);
           break;
       }
     }
+    if(from.size() > 0)
+      userModesChanged((IrcChannelUser[])from.toArray(new IrcChannelUser[from.size()]),
+          (IrcChannelUser[])to.toArray(new IrcChannelUser[to.size()]));
   }
   
   public void onTopicChange ( IrcPrefix who, String newTopic )
@@ -366,7 +475,7 @@ public class ChannelPane extends Pane
       if(lastWord.length() > 0 && lastWord.charAt(0) == '#')
         out.addAll(serverPane.completeChannelName(lastWord));
       else
-        out.addAll(completeFromIrcStringTreeMap(lastWord, users));
+        out.addAll(completeFromSortedIrcStrings(lastWord, users.nicks(serverPane.toIrcString(lastWord))));
     }
     return out;
   }
@@ -21,7 +21,11 @@ import java.util.*;
 
 public class ChannelPaneAdapter implements ChannelPaneListener
 {
-  public void onUserListChanged ( Collection users ) {}
+  public void onUserListChanged ( UserList users ) {}
+  public void onUserAdded ( UserList users, IrcChannelUser u ) {}
+  public void onUserRemoved ( UserList users, IrcChannelUser u ) {}
+  public void onUserRenamed ( UserList users, IrcChannelUser from, IrcChannelUser to ) {}
+  public void onUserModesChanged ( UserList users, IrcChannelUser[] from, IrcChannelUser[] to ) {}
   public void onTopicChanged ( String topic ) {}
 }
 
@@ -21,7 +21,14 @@ import java.util.*;
 
 public interface ChannelPaneListener
 {
-  void onUserListChanged ( Collection users );
+  // The whole list, when first listening, on a NAMES reply and on leaving
+  void onUserListChanged ( UserList users );
+  // One change to the list, which users is the result of
+  void onUserAdded ( UserList users, IrcChannelUser u );
+  void onUserRemoved ( UserList users, IrcChannelUser u );
+  void onUserRenamed ( UserList users, IrcChannelUser from, IrcChannelUser to );
+  // Everyone one MODE line changed, together: from[i] became to[i]
+  void onUserModesChanged ( UserList users, IrcChannelUser[] from, IrcChannelUser[] to );
   void onTopicChanged ( String topic );
 }
 
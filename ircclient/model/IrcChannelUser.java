@@ -17,39 +17,119 @@
  */
 
 package ircclient.model;
+import java.util.*;
 import kpl.irc.*;
 
-public class IrcChannelUser
+// Someone's membership of one channel: who they are, shared with the
+// server's other channels, and their rank in this one. Never changes,
+// as old UserLists may still hold it; a change of nick or rank makes a
+// new one.
+public final class IrcChannelUser
 {
-  public IrcString nick;
-  public ModeSet channelModes;
+  public final IrcUser user;
+  // The nick when this was made, as user.nick changes under us
+  private final IrcString nick;
+  // Bit n set for each prefix mode of rank n the user holds, see
+  // IrcModeTable
+  private final int prefixBits;
+  private final IrcModeTable modeTable;
 
-  IrcChannelUser ( IrcString user )
+  // Highest rank first, then by nick, as user lists are shown
+  public static final Comparator RANK_ORDER = new Comparator()
   {
-    StringBuffer buf = new StringBuffer ( user.toString() );
+    public int compare ( Object a, Object b )
+    {
+      IrcChannelUser ua = (IrcChannelUser)a, ub = (IrcChannelUser)b;
+      int ra = ua.getRank(), rb = ub.getRank();
+      if(ra != rb)
+        return ra < rb ? -1 : 1;
+      return ua.nick.compareTo(ub.nick);
+    }
+  };
+
+  IrcChannelUser ( IrcUser user, IrcModeTable modeTable )
+  {
+    this(user, user.nick, 0, modeTable);
+  }
+
+  private IrcChannelUser ( IrcUser user, IrcString nick, int prefixBits, IrcModeTable modeTable )
+  {
+    this.user = user;
+    this.nick = nick;
+    this.prefixBits = prefixBits;
+    this.modeTable = modeTable;
+  }
 
-    channelModes = new ModeSet();
-    while(buf.length() > 0 && (buf.charAt(0) == '+' || buf.charAt(0) == '@'))
+  // One entry of a NAMES reply, between start and end of names: any
+  // prefix symbols then the nick, perhaps followed by user and host, eg.
+  // "@+nick!user@host". The user comes from the registry, looked up by a
+  // nick folded with the connection's case mapping.
+  IrcChannelUser ( String names, int start, int end, IrcCaseMapping mapping, IrcModeTable modeTable, IrcUserRegistry registry )
+  {
+    this.modeTable = modeTable;
+    int i = start;
+    int bits = 0;
+    while(i < end && modeTable.getSymbolRank(names.charAt(i)) >= 0)
+    {
+      bits |= 1 << modeTable.getSymbolRank(names.charAt(i));
+      i++;
+    }
+    prefixBits = bits;
+    int nickEnd = i;
+    while(nickEnd < end && names.charAt(nickEnd) != '!')
+      nickEnd++;
+    user = registry.intern(new IrcString(names.substring(i, nickEnd), mapping));
+    nick = user.nick;
+    if(nickEnd < end)
     {
-      if(buf.charAt(0) == '+')
-        channelModes.setModeString("+v");
-      else
-        channelModes.setModeString("+o");
-     
-      buf.deleteCharAt(0);
+      int at = names.indexOf('@', nickEnd);
+      if(at != -1 && at < end)
+        user.setUserHost(names.substring(nickEnd + 1, at), names.substring(at + 1, end));
     }
-    nick = new IrcString ( buf.toString() );
   }
 
+  public IrcString getNick ()
+  {
+    return nick;
+  }
+
+  public boolean hasPrefixMode ( char mode )
+  {
+    int rank = modeTable.getModeRank(mode);
+    return rank >= 0 && (prefixBits & (1 << rank)) != 0;
+  }
+
+  // Returns this if nothing changes
+  IrcChannelUser withPrefixMode ( char mode, boolean on )
+  {
+    int rank = modeTable.getModeRank(mode);
+    if(rank < 0)
+      return this;
+    int bits = on ? prefixBits | (1 << rank) : prefixBits & ~(1 << rank);
+    if(bits == prefixBits)
+      return this;
+    return new IrcChannelUser(user, nick, bits, modeTable);
+  }
+
+  IrcChannelUser withNick ( IrcString newNick )
+  {
+    return new IrcChannelUser(user, newNick, prefixBits, modeTable);
+  }
+
+  // The highest rank held, 0 being the highest there is, or the number
+  // of ranks if the user has none
+  public int getRank ()
+  {
+    if(prefixBits == 0)
+      return modeTable.getPrefixCount();
+    return Integer.numberOfTrailingZeros(prefixBits);
+  }
+
+  // The symbol for the highest rank held, as servers show in NAMES
   public String toString ()
   {
-    String out = new String();
-    if(channelModes.hasMode('o'))
-      out = out + "@";
-    if(channelModes.hasMode('v'))
-      out = out + "+";
-    out = out + nick;
-    return out;
+    if(prefixBits == 0)
+      return nick.toString();
+    return modeTable.getPrefixSymbol(getRank()) + nick.toString();
   }
 }
-
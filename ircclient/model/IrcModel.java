@@ -19,6 +19,7 @@
 package ircclient.model;
 import kpl.irc.*;
 import java.util.*;
+import kpl.settings.*;
 
 public class IrcModel
 {
@@ -27,6 +28,8 @@ public class IrcModel
   // once shuttingDown has been set true, it can not be set false
   // when shuttingDown is true, no new connections should be made.
   private boolean shuttingDown;
+  // Shared by every server pane, made when the first connection needs it
+  private IrcReactor reactor;
   
   public IrcModel()
   {
@@ -106,6 +109,28 @@ public class IrcModel
     }
   }
   
+  // Returns the reactor connections should be multiplexed over, or null
+  // if Irc.selectorThreads is 0 and each connection should get its own
+  // thread.
+  synchronized public IrcReactor getReactor ()
+  {
+    if(reactor != null)
+      return reactor;
+
+    int threads = Settings.makeAndGet("Irc.selectorThreads", new SettingValue(1)).asInt();
+    if(threads <= 0)
+      return null;
+    try
+    {
+      reactor = new IrcReactor(threads);
+    } catch ( java.io.IOException e )
+    {
+      // Fall back to a thread per connection
+      System.err.println(e);
+    }
+    return reactor;
+  }
+  
   public void shutDown ()
   {
     if(shuttingDown)
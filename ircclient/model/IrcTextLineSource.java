@@ -20,8 +20,13 @@ package ircclient.model;
 
 public interface IrcTextLineSource
 {
-  // This method MUST be implemented as synchronized
+  // This method MUST be implemented as synchronized. Returns null for
+  // an index from before getFirstIndex or from size on.
   IrcTextLine getLine ( int index );
+  // One more than the index of the newest line
   int size ();
+  // The index of the oldest line still held; older ones have been
+  // dropped, but the lines after them keep their indices
+  int getFirstIndex ();
 }
 
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package ircclient.model;
+import java.util.*;
+import kpl.irc.*;
+
+// Someone on the server, as far as we know them. There is one of these
+// per nick per server, however many channels we share with them; each
+// channel's IrcChannelUser only adds their rank there.
+public class IrcUser
+{
+  public IrcString nick;
+  // Null until known, from a JOIN, a userhost-in-names NAMES reply or
+  // an account tag
+  public String user, host, account;
+  // The ChannelPanes we share with them
+  final List channels;
+
+  IrcUser ( IrcString nick )
+  {
+    this.nick = nick;
+    channels = new ArrayList(2);
+  }
+
+  // Fill in whatever is known and was not before. Either may be null.
+  void setUserHost ( String user, String host )
+  {
+    if(user != null)
+      this.user = user;
+    if(host != null)
+      this.host = host;
+  }
+
+  public String toString ()
+  {
+    if(user == null || host == null)
+      return nick.toString();
+    return nick + "!" + user + "@" + host;
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package ircclient.model;
+import java.util.*;
+import kpl.irc.*;
+
+/**
+ * The people a ServerPane knows about, by nick, each with the channels
+ * we share with them. A QUIT or NICK then only has to visit the
+ * channels the user is actually in. Users are forgotten once we share
+ * no channel with them. Only used from the ServerPane's listener
+ * thread, so nothing here is synchronized: commands on the GUI thread
+ * never touch it, even to cancel a reconnect (the connection reports
+ * that through its event bus), and ServerPane makes no new connection,
+ * and so no new listener thread, until the old one has seen its last
+ * disconnect.
+ */
+class IrcUserRegistry
+{
+  private HashMap users;
+
+  IrcUserRegistry ()
+  {
+    users = new HashMap();
+  }
+
+  // Returns null if we share no channel with them
+  IrcUser get ( IrcString nick )
+  {
+    return (IrcUser)users.get(nick);
+  }
+
+  // The record for nick, made if there is none yet
+  IrcUser intern ( IrcString nick )
+  {
+    IrcUser u = (IrcUser)users.get(nick);
+    if(u == null)
+    {
+      u = new IrcUser(nick);
+      users.put(nick, u);
+    }
+    return u;
+  }
+
+  void joined ( IrcUser u, ChannelPane cp )
+  {
+    if(!u.channels.contains(cp))
+      u.channels.add(cp);
+  }
+
+  void left ( IrcUser u, ChannelPane cp )
+  {
+    u.channels.remove(cp);
+    if(u.channels.isEmpty() && users.get(u.nick) == u)
+      users.remove(u.nick);
+  }
+
+  void quit ( IrcUser u )
+  {
+    u.channels.clear();
+    if(users.get(u.nick) == u)
+      users.remove(u.nick);
+  }
+
+  void renamed ( IrcUser u, IrcString newNick )
+  {
+    if(users.get(u.nick) == u)
+      users.remove(u.nick);
+    u.nick = newNick;
+    users.put(newNick, u);
+  }
+
+  // Forget everyone, eg. when the connection is lost
+  void clear ()
+  {
+    users.clear();
+  }
+
+  int size ()
+  {
+    return users.size();
+  }
+}
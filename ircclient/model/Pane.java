@@ -20,11 +20,13 @@ package ircclient.model;
 import java.util.*;
 import java.lang.*;
 import kpl.irc.*;
+import kpl.settings.Settings;
+import kpl.settings.SettingValue;
 
 abstract public class Pane
 {
   protected String title;
-  protected VectorLineSource buffer;
+  protected RingLineSource buffer;
   protected IrcModel model;
   protected Vector paneListeners;
   protected TreeMap commandMap;
@@ -33,17 +35,24 @@ abstract public class Pane
   public int index;
   public LineHistory history;
   
-  Pane ( IrcModel model, String title, int index )
+  // scrollback is how many lines to keep
+  Pane ( IrcModel model, String title, int index, int scrollback )
   {
     this.index = index;
     this.model = model;
     this.title = title;
-    buffer = new VectorLineSource();
+    buffer = new RingLineSource(scrollback);
     paneListeners = new Vector();
     commandMap = new TreeMap(String.CASE_INSENSITIVE_ORDER);
     history = new LineHistory(128);
   }
   
+  // The scrollback setting for a kind of pane, eg. "channel"
+  static int getScrollback ( String kind, int defaultLines )
+  {
+    return Settings.makeAndGet("Scrollback." + kind, new SettingValue(defaultLines)).asInt();
+  }
+
   public String getTitle ()
   {
     return new String(title);
@@ -148,11 +157,20 @@ abstract public class Pane
   
   // 
   protected Set completeFromIrcStringTreeMap ( String partial, TreeMap map )
+  {
+    if(map.isEmpty())
+      return new TreeSet();
+    // Fold partial as the keys were folded, or tailMap starts elsewhere
+    IrcCaseMapping m = ((IrcString)map.firstKey()).getCaseMapping();
+    return completeFromSortedIrcStrings(partial, map.tailMap(new IrcString(partial, m)).keySet().iterator());
+  }
+
+  // As above, given the keys in order from the first not before partial
+  protected Set completeFromSortedIrcStrings ( String partial, Iterator it )
   {
     TreeSet out = new TreeSet();
     String partialLower = partial.toLowerCase();
     
-    Iterator it = map.tailMap(new IrcString(partial)).keySet().iterator();
     while(it.hasNext())
     {
       String key = ((IrcString)it.next()).toString();
@@ -165,6 +183,23 @@ abstract public class Pane
     return out;
   }
   
+  // As above, for maps which are not sorted
+  protected Set completeFromIrcStringMap ( String partial, Map map )
+  {
+    TreeSet out = new TreeSet();
+    String partialLower = partial.toLowerCase();
+    
+    Iterator it = map.keySet().iterator();
+    while(it.hasNext())
+    {
+      String key = ((IrcString)it.next()).toString();
+      if(key.toLowerCase().startsWith(partialLower))
+        out.add(new Completion(key,partial.length()));
+    }
+
+    return out;
+  }
+  
   // returns a set of Strings
   protected Set getCommandsWithPrefix ( String prefix )
   {
@@ -27,9 +27,18 @@ public class QueryPane extends Pane
   
   QueryPane ( IrcModel model, IrcString who, ServerPane serverPane, int index )
   {
-    super( model, who.toString(), index );
+    super( model, who.toString(), index, getScrollback("query", 5000) );
     this.who = who;
     this.serverPane = serverPane;
+    commandMap.put("charset", new PaneCommand(0) {
+      public void run ( String [] args ) throws UserInputException
+      {
+        if(args.length >= 1)
+          QueryPane.this.serverPane.setCharset(QueryPane.this.who, args[0]);
+        printLine(IrcTextLine.INFO, "Charset is "
+          + QueryPane.this.serverPane.charsets.describe(QueryPane.this.who));
+      }
+    });
   }
   
   protected void sendNonCommand ( String line ) throws UserInputException
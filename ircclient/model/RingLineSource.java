@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package ircclient.model;
+
+/**
+ * The newest lines of a pane, up to a fixed number. A line keeps the
+ * index it was added at; once more than capacity lines have been added
+ * the oldest are dropped, and getFirstIndex moves up past them. The
+ * array grows to capacity as lines arrive, so quiet panes stay small.
+ */
+public class RingLineSource implements IrcTextLineSource
+{
+  private IrcTextLine[] lines;
+  private final int capacity;
+  // Index the next line will get
+  private int end;
+
+  public RingLineSource ( int capacity )
+  {
+    this.capacity = Math.max(1, capacity);
+    lines = new IrcTextLine[Math.min(this.capacity, 64)];
+  }
+
+  synchronized public void addLine ( IrcTextLine l )
+  {
+    // Until the array is full nothing has wrapped round, so the lines
+    // keep their places in a bigger one
+    if(end == lines.length && lines.length < capacity)
+    {
+      IrcTextLine[] bigger = new IrcTextLine[Math.min(capacity, lines.length * 2)];
+      System.arraycopy(lines, 0, bigger, 0, lines.length);
+      lines = bigger;
+    }
+    lines[end % lines.length] = l;
+    end++;
+  }
+
+  // We require the source is readable from other threads
+  synchronized public IrcTextLine getLine ( int index )
+  {
+    if(index < getFirstIndex() || index >= end)
+      return null;
+    return lines[index % lines.length];
+  }
+
+  synchronized public int size ()
+  {
+    return end;
+  }
+
+  synchronized public int getFirstIndex ()
+  {
+    return Math.max(0, end - capacity);
+  }
+
+  public int getCapacity ()
+  {
+    return capacity;
+  }
+}
@@ -21,14 +21,26 @@ import java.util.*;
 import java.lang.*;
 import kpl.irc.*;
 import kpl.settings.Settings;
+import kpl.settings.SettingValue;
 
 // Server pane recieves events from the server, and routes them to
 // the appropriate channel pane
 public class ServerPane extends Pane implements IrcEventListener
 {
-  protected IrcConnection connection;
+  // Only ever set by commands, on the GUI thread. Listener calls come
+  // on the event bus thread and only read it, so it is volatile. It is
+  // kept once the connection has finished.
+  protected volatile IrcConnection connection;
+  // Set when a command makes a connection, and cleared by onDisconnect
+  // once no reconnect is coming. Until then no new connection, with a
+  // listener thread of its own, is made, so the old listener has
+  // finished with users and the channel panes before the next starts.
+  private volatile boolean active;
   protected String hostName;
   protected int port;
+  protected boolean useTls;
+  // Kept across reconnects so the TLS session can be resumed
+  protected IrcTls tls;
   protected IrcString currentNick; // Used for things such as determining if it
                             // is us who has left the channel, etc.
                             // should be what the server says our nick is.
@@ -36,8 +48,21 @@ public class ServerPane extends Pane implements IrcEventListener
                             // Some servers will seem to accept a given nick
                             // but will then carry on as if you had given a different
                             // (ie. truncated) nick
-  protected TreeMap channelPanes;
+  protected Map channelPanes;
   protected Map queryPanes;
+  // Kept here rather than in the connection so /charset settings last
+  // across reconnects
+  protected IrcCharsets charsets;
+  // Keys given to /join, waiting for the channel pane to be made
+  protected Map joinKeys;
+  // Set by /record, and kept across reconnects
+  protected IrcRecorder recorder;
+  // The capture being played instead of a server, if any
+  protected IrcReplay replay;
+  // What /stats last showed, so it can give rates since then
+  protected IrcStats.Snapshot lastStats;
+  // Everyone we share a channel with
+  IrcUserRegistry users;
   
   private ChannelPane ensureInChannel ( IrcString where )
   {
@@ -49,6 +74,7 @@ public class ServerPane extends Pane implements IrcEventListener
     }
 
     ChannelPane cp = model.makeNewChannelPane ( where, this );
+    cp.key = (String)joinKeys.remove(where);
     channelPanes.put(where, cp);
     return cp;
   }
@@ -69,6 +95,29 @@ public class ServerPane extends Pane implements IrcEventListener
   public void onWelcome ( IrcString yourNick, String msg )
   {
     currentNick = yourNick;
+    printLine(IrcTextLine.INFO, "Registered as " + yourNick + " in "
+        + connection.getRegistration().getRegistrationMillis() + "ms");
+    rejoinChannels();
+  }
+
+  // Rejoin whatever we were in when the connection dropped
+  private void rejoinChannels ()
+  {
+    List chans = new ArrayList(), keys = new ArrayList();
+    Iterator it = channelPanes.values().iterator();
+    while(it.hasNext())
+    {
+      ChannelPane cp = (ChannelPane)it.next();
+      if(!cp.rejoin)
+        continue;
+      cp.rejoin = false;
+      chans.add(cp.chanName);
+      keys.add(cp.key);
+    }
+    if(chans.size() == 0)
+      return;
+    printLine(IrcTextLine.INFO, "Rejoining " + chans.size() + " channel(s)");
+    connection.sendJoins(chans, keys);
   }
   
   public void onJoin ( IrcPrefix who, IrcString where )
@@ -106,16 +155,15 @@ public class ServerPane extends Pane implements IrcEventListener
       cp.leaveChannel();
   }
 
-  // Send message to a channel that MIGHT be of relevance,
-  // and allow ChannelPane to determine to ignore it or not.
+  // Only the channels the user is in hear about it
   public void onNick ( IrcPrefix who, IrcString newNick )
   {
-    Iterator it = channelPanes.values().iterator();
-
-    while(it.hasNext())
+    IrcUser u = users.get(who.getNick());
+    if(u != null)
     {
-      ChannelPane cp = (ChannelPane)it.next();
-      cp.onNick(who, newNick);
+      for(int i=0;i<u.channels.size();i++)
+        ((ChannelPane)u.channels.get(i)).onNick(u, newNick);
+      users.renamed(u, newNick);
     }
 
     if(who.getNick().equals(currentNick))
@@ -127,13 +175,12 @@ public class ServerPane extends Pane implements IrcEventListener
  
   public void onQuit ( IrcPrefix who, String why )
   {
-    Iterator it = channelPanes.values().iterator();
-
-    while(it.hasNext())
-    {
-      ChannelPane cp = (ChannelPane)it.next();
-      cp.onQuit(who, why);
-    }
+    IrcUser u = users.get(who.getNick());
+    if(u == null)
+      return;
+    for(int i=0;i<u.channels.size();i++)
+      ((ChannelPane)u.channels.get(i)).onQuit(u, why);
+    users.quit(u);
   }
  
   public void onNamesList ( IrcString where, IrcString names )
@@ -141,7 +188,31 @@ public class ServerPane extends Pane implements IrcEventListener
     ChannelPane cp = ensureInChannel( where );
     cp.onNamesList( names );
   }
+
+  public void onNamesEnd ( IrcString where )
+  {
+    if(!channelPanes.containsKey(where))
+      return;
+    ChannelPane cp = (ChannelPane)channelPanes.get(where);
+    cp.onNamesEnd();
+  }
   
+  // The connection's idea of channel modes, or the RFC 1459 ones while
+  // there is no connection
+  IrcModeTable getModeTable ()
+  {
+    IrcConnection c = connection;
+    return c != null ? c.getModeTable() : IrcModeTable.DEFAULT;
+  }
+
+  // A nick or channel typed by the user, folding case as the server does
+  // so it matches the names the connection makes
+  IrcString toIrcString ( String s )
+  {
+    IrcConnection c = connection;
+    return new IrcString(s, c != null ? c.getCaseMapping() : IrcCaseMapping.RFC1459);
+  }
+
   public void onMode ( IrcPrefix who, IrcString what, IrcString modeString, Vector args )
   {
     // TODO: add support for MODE lines where "what" is a user.
@@ -182,19 +253,30 @@ public class ServerPane extends Pane implements IrcEventListener
   
   ServerPane ( IrcModel model, int index )
   {
-    super( model, "<Disconnected>", index );
-    channelPanes = new TreeMap();
-    queryPanes = new TreeMap();
+    super( model, "<Disconnected>", index, getScrollback("server", 2000) );
+    channelPanes = new HashMap();
+    queryPanes = new HashMap();
+    users = new IrcUserRegistry();
     hostName = null;
+    charsets = new IrcCharsets();
+    joinKeys = new HashMap();
     commandMap.put("connect", new PaneCommand(1) {
       public void run ( String [] args ) throws UserInputException
       {
         int p;
+        boolean t = false;
         if(args.length >= 2)
         {
+          // "+6697" means connect with TLS
+          String ps = args[1];
+          if(ps.startsWith("+"))
+          {
+            t = true;
+            ps = ps.substring(1);
+          }
           try
           {
-            p = Integer.decode(args[1]).intValue();
+            p = Integer.decode(ps).intValue();
           } catch(NumberFormatException e)
           {
             throw new UserInputException("Non numeric port passed");
@@ -203,7 +285,7 @@ public class ServerPane extends Pane implements IrcEventListener
         {
           p = 6667;
         }
-        cmdConnect( args[0], p );
+        cmdConnect( args[0], p, t );
       }
     });
     commandMap.put("reconnect", new PaneCommand(0) {
@@ -213,14 +295,25 @@ public class ServerPane extends Pane implements IrcEventListener
         {
           throw new UserInputException("Not connected before");
         }
-        cmdConnect( hostName, port );
+        if(replay != null)
+        {
+          throw new UserInputException("Use /replay to play a capture again");
+        }
+        // Skip the rest of the wait if one is scheduled
+        if(connection != null && connection.reconnectNow())
+          return;
+        cmdConnect( hostName, port, useTls );
       }
     });
     commandMap.put("quit", new PaneCommand(0) {
       public void run ( String [] args ) throws UserInputException
       {
-        if(connection == null)
+        if(!isActive())
           throw new UserInputException("Not connected");
+        // The connection tells us it has given up, as for any other
+        // disconnect
+        if(connection.cancelReconnect())
+          return;
         String why;
         if(args.length >= 1)
           why = args[0];
@@ -232,24 +325,122 @@ public class ServerPane extends Pane implements IrcEventListener
     commandMap.put("join", new PaneCommand(1) {
       public void run ( String [] args ) throws UserInputException
       {
-        if(connection == null)
+        if(!isActive())
           throw new UserInputException("Not connected");
-        connection.sendJoin(new IrcString(args[0]));
+        IrcString chan = toIrcString(args[0]);
+        if(args.length >= 2)
+        {
+          joinKeys.put(chan, args[1]);
+          connection.sendJoin(chan, args[1]);
+        } else
+        {
+          connection.sendJoin(chan);
+        }
       }
     });
     commandMap.put("nick", new PaneCommand(1) {
       public void run ( String [] args ) throws UserInputException
       {
-        if(connection == null)
+        if(!isActive())
           throw new UserInputException("Not connected");
-        connection.sendNick(new IrcString(args[0]));
+        connection.sendNick(toIrcString(args[0]));
+      }
+    });
+    
+    commandMap.put("charset", new PaneCommand(0) {
+      public void run ( String [] args ) throws UserInputException
+      {
+        if(args.length >= 1)
+          setCharset(null, args[0]);
+        printLine(IrcTextLine.INFO, "Charset is " + charsets.describe(null));
+      }
+    });
+    commandMap.put("record", new PaneCommand(1) {
+      public void run ( String [] args ) throws UserInputException
+      {
+        if(recorder != null)
+        {
+          try
+          {
+            recorder.close();
+          } catch ( java.io.IOException e )
+          {
+            throw new UserInputException("Error closing capture: " + e);
+          } finally
+          {
+            printLine(IrcTextLine.INFO, "Recorded " + recorder);
+            recorder = null;
+            if(connection != null)
+              connection.setRecorder(null);
+          }
+        }
+        if(args[0].equals("off"))
+          return;
+        try
+        {
+          recorder = new IrcRecorder(args[0]);
+        } catch ( java.io.IOException e )
+        {
+          throw new UserInputException("Can not record to " + args[0] + ": " + e);
+        }
+        if(connection != null)
+          connection.setRecorder(recorder);
+        printLine(IrcTextLine.INFO, "Recording to " + args[0]);
+      }
+    });
+    commandMap.put("replay", new PaneCommand(1) {
+      public void run ( String [] args ) throws UserInputException
+      {
+        // Speed 0 plays as fast as possible
+        double speed = 1;
+        if(args.length >= 2)
+        {
+          try
+          {
+            speed = Double.parseDouble(args[1]);
+          } catch(NumberFormatException e)
+          {
+            throw new UserInputException("Non numeric speed passed");
+          }
+        }
+        replay(new IrcReplay(args[0], speed));
+      }
+    });
+    commandMap.put("lag", new PaneCommand(0) {
+      public void run ( String [] args ) throws UserInputException
+      {
+        if(!isActive())
+          throw new UserInputException("Not connected");
+        printLine(IrcTextLine.INFO, "Lag: " + connection.getLagMeter());
+      }
+    });
+    commandMap.put("stats", new PaneCommand(0) {
+      public void run ( String [] args ) throws UserInputException
+      {
+        if(!isActive())
+          throw new UserInputException("Not connected");
+        // Rates are since the last /stats, or since connecting
+        IrcStats.Snapshot now = connection.getStats().snapshot();
+        String[] lines = now.format(lastStats);
+        for(int i=0;i<lines.length;i++)
+          printLine(IrcTextLine.INFO, lines[i]);
+        lastStats = now;
+      }
+    });
+    commandMap.put("queue", new PaneCommand(0) {
+      public void run ( String [] args ) throws UserInputException
+      {
+        if(!isActive())
+          throw new UserInputException("Not connected");
+        printLine(IrcTextLine.INFO, "Input queue: " + connection.getEventBus());
+        printLine(IrcTextLine.INFO, "Output queue: " + connection.getOutputQueue());
       }
     });
     
     commandMap.put("raw", new PaneCommand(1) {
       public void run ( String [] args ) throws UserInputException
       {
-        if(connection == null)
+        if(!isActive())
           throw new UserInputException("Not connected");
         StringBuffer buf = new StringBuffer();
         for(int i=0;i<args.length;i++)
@@ -268,28 +459,43 @@ public class ServerPane extends Pane implements IrcEventListener
       }
     });
 
-    connection = null;
   }
 
   public void onConnect ()
   {
     printLine(IrcTextLine.INFO, "Connected");
+    if(useTls)
+      printLine(IrcTextLine.INFO, "TLS handshake took "
+          + (int)tls.getLastHandshakeMillis() + "ms"
+          + (tls.wasLastHandshakeResumed() ? ", session resumed" : ""));
     changeTitle(hostName);
   }
    
-  public void onDisconnect ()
+  public void onDisconnect ( Exception why, boolean reconnecting )
   {
-    printLine(IrcTextLine.INFO, "Disconnected");
+    printLine(IrcTextLine.INFO, why != null ? "Disconnected: " + why : "Disconnected");
+    if(replay != null)
+      printLine(IrcTextLine.INFO, "Replayed " + replay);
     changeTitle("(" + hostName + ")");
-    connection = null;
+
+    if(reconnecting)
+      printLine(IrcTextLine.INFO, "Reconnecting...");
     
-    // Go through all the channel panes telling them to leave
+    // Go through all the channel panes telling them to leave. Their
+    // scrollback stays, and they come back to life when rejoined.
     Iterator it = channelPanes.values().iterator();
     while(it.hasNext())
     {
       ChannelPane cp = (ChannelPane)it.next();
+      if(reconnecting && cp.inChannel)
+        cp.rejoin = true;
+      else if(!reconnecting)
+        cp.rejoin = false;
       cp.leaveChannel();
     } 
+    users.clear();
+    if(!reconnecting)
+      active = false;
 
     // Check if we have shut down, so we can send window close events and such
     model.checkShutDown();
@@ -298,14 +504,48 @@ public class ServerPane extends Pane implements IrcEventListener
   public void onCommand ( IrcCommand c )
   {
     printLine(IrcTextLine.INFO, "> " + c);
+
+    // account-tag: which account, if any, the sender is logged in to
+    if(c.hasTags() && c.getPrefix() != null && !c.getPrefix().isServerName())
+    {
+      String account = c.getAccount();
+      IrcUser u = account != null ? users.get(c.getPrefix().getNick()) : null;
+      if(u != null)
+        u.account = account.equals("*") ? null : account;
+    }
   }
   
   // Damn you, lack of MI!
   public void onPing ( String code ) {}
   public void onNoMotd() {}
   public void onMotdEnd() {}
+  public void onNumeric ( int numeric, IrcCommand c )
+  {
+    // ERR_ERRONEUSNICKNAME, ERR_NICKNAMEINUSE, ERR_UNAVAILRESOURCE
+    if(numeric != 432 && numeric != 433 && numeric != 437)
+      return;
+    // Registration has tried every fallback nick and is waiting for us
+    IrcConnection conn = connection;
+    if(conn != null && conn.getRegistration().isWaitingForNick())
+      printLine(IrcTextLine.INFO, "Nick " + (c.getArgCount() > 2 ? c.getArg(2) + " " : "")
+          + "refused and no alternatives left, pick another with /nick");
+  }
+
+  public void onOverload ( String summary )
+  {
+    printLine(IrcTextLine.INFO, "Too busy to keep up, " + summary);
+  }
+
+  public void onLag ( long millis )
+  {
+    // Only worth a place in the title once it is noticeable
+    if(millis < 1000)
+      changeTitle(hostName);
+    else
+      changeTitle(hostName + " [lag " + (millis / 1000) + "s]");
+  }
  
-  private void cmdConnect ( String host, int p ) throws UserInputException
+  private void cmdConnect ( String host, int p, boolean t ) throws UserInputException
   {
     if(model.isShuttingDown())
     {
@@ -316,21 +556,97 @@ public class ServerPane extends Pane implements IrcEventListener
     {
       throw new UserInputException("Port number out of range");
     }
-    if(connection != null)
+    if(isActive())
     {
       throw new UserInputException("Already connected");
     }
+    if(t && tls == null)
+      tls = makeTls();
     hostName = host;
     port = p;
+    useTls = t;
+    replay = null;
     changeTitle("> " + hostName);
         
+    makeConnection();
+    connection.setReactor(model.getReactor());
+    connection.setTls(useTls ? tls : null);
+    connection.getLagMeter().setPingInterval(
+        Settings.makeAndGet("Irc.pingInterval", new SettingValue(30000)).asInt());
+    connection.getLagMeter().setTimeout(
+        Settings.makeAndGet("Irc.pingTimeout", new SettingValue(90000)).asInt());
+    if(Settings.makeAndGet("Irc.reconnect", new SettingValue(true)).asBoolean())
+      connection.setAutoReconnect(new IrcBackoff(
+          Settings.makeAndGet("Irc.reconnectMinDelay", new SettingValue(2000)).asInt(),
+          Settings.makeAndGet("Irc.reconnectMaxDelay", new SettingValue(300000)).asInt()));
+    connection.connect(hostName, port);
+  }
+
+  // Feed a capture made with /record through this pane as if it came
+  // from a server
+  public void replay ( IrcReplay r ) throws UserInputException
+  {
+    if(model.isShuttingDown())
+    {
+      throw new UserInputException("Can not make new connection, client is shutting down");
+    }
+    if(isActive())
+    {
+      throw new UserInputException("Already connected");
+    }
+    hostName = r.getFileName();
+    port = 0;
+    useTls = false;
+    replay = r;
+    changeTitle("> " + hostName);
+
+    makeConnection();
+    connection.replay(r);
+  }
+
+  // Set up what live and replayed connections have in common
+  private void makeConnection ()
+  {
+    active = true;
     connection = new IrcConnection(
     		Settings.get("Irc.nick").asString(),
     		Settings.get("Irc.user").asString(),
     		Settings.get("Irc.name").asString());
-    currentNick = new IrcString("kpIRC-User");
-    connection.addEventListener(this);
-    connection.connect(hostName, port);
+    currentNick = connection.getPreferredNick();
+    lastStats = null;
+    String alternates = Settings.makeAndGet("Irc.alternateNicks", new SettingValue("")).asString().trim();
+    if(alternates.length() > 0)
+      connection.setAlternateNicks(Arrays.asList(alternates.split("[ ,]+")));
+    charsets.setFallbackCharset(
+        Settings.makeAndGet("Irc.fallbackCharset", new SettingValue("windows-1252")).asString());
+    connection.setCharsets(charsets);
+    connection.setRecorder(recorder);
+    connection.setFloodControl(
+        Settings.makeAndGet("Irc.floodInterval", new SettingValue(2000)).asInt(),
+        Settings.makeAndGet("Irc.floodBurst", new SettingValue(5)).asInt());
+    connection.getEventBus().setCapacity(
+        Settings.makeAndGet("Irc.inputQueue", new SettingValue(65536)).asInt());
+    String policy = Settings.makeAndGet("Irc.overloadPolicy", new SettingValue("coalesce")).asString();
+    if(IrcEventBus.policyForName(policy) != null)
+      connection.getEventBus().setOverloadPolicy(IrcEventBus.policyForName(policy).intValue());
+    // Asynchronous, so posting lines to the GUI never holds up reading
+    connection.addEventListener(this, true);
+  }
+
+  private IrcTls makeTls () throws UserInputException
+  {
+    IrcTls t = new IrcTls();
+    t.setVerifyCertificates(
+        Settings.makeAndGet("Irc.verifyCertificates", new SettingValue(true)).asBoolean());
+    String cert = Settings.makeAndGet("Irc.clientCert", new SettingValue("")).asString();
+    if(cert.length() > 0)
+    {
+      if(!new java.io.File(cert).canRead())
+        throw new UserInputException("Can not read client certificate " + cert);
+      t.setClientCertificate(cert,
+          Settings.makeAndGet("Irc.clientCertPassword", new SettingValue("")).asString());
+    }
+    return t;
   }
 
   // If a connection is open, tell it to close
@@ -338,12 +654,16 @@ public class ServerPane extends Pane implements IrcEventListener
   {
     if(!isActive())
       return;
+    if(connection.cancelReconnect())
+      return;
     connection.sendQuit("Closing kpIRC...");
   }
 
+  // Connected, connecting or waiting to reconnect, or not yet done
+  // with the last disconnect
   public boolean isActive ()
   {
-    return connection!=null;
+    return active;
   }
 
   // Can't close a server tab unless we have closed all the associated
@@ -358,6 +678,23 @@ public class ServerPane extends Pane implements IrcEventListener
     model.removePane(this);
   }
 
+  // Set the charset for a channel or nick, or the whole server if
+  // target is null. "auto" means try UTF-8 first.
+  public void setCharset ( IrcString target, String name ) throws UserInputException
+  {
+    try
+    {
+      if(target == null)
+        charsets.setServerCharset(name);
+      else
+        charsets.setTargetCharset(target, name);
+    } catch ( IllegalArgumentException e )
+    {
+      // Covers both illegal and unsupported charset names
+      throw new UserInputException("Unknown charset " + name);
+    }
+  }
+
   public void removeChannelPane( IrcString where )
   {
     ChannelPane cp = (ChannelPane)channelPanes.get(where);
@@ -374,7 +711,7 @@ public class ServerPane extends Pane implements IrcEventListener
 
   public Set completeChannelName ( String partialChannel )
   {
-    return completeFromIrcStringTreeMap( partialChannel, channelPanes );
+    return completeFromIrcStringMap( partialChannel, channelPanes );
   }
 
   public Set completeLine ( String linePassed, int cursorPos )
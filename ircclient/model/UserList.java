@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package ircclient.model;
+import java.util.*;
+import kpl.irc.*;
+
+/**
+ * A channel's users at one moment, sorted by nick. A list never changes
+ * once made: put and remove return a new list that shares all but
+ * O(log n) of its nodes with the old one, so the model can publish a
+ * list after every change and any thread can go on reading one it was
+ * given without locking. Each change adds one to the version, so
+ * readers can tell which of two lists is newer. The tree is an AVL
+ * tree, rebalanced on the copied path.
+ */
+public final class UserList extends AbstractCollection
+{
+  public static final UserList EMPTY = new UserList(null, 0, 0);
+
+  private static final class Node
+  {
+    final IrcString nick;
+    final IrcChannelUser user;
+    final Node left, right;
+    final int height;
+
+    Node ( IrcString nick, IrcChannelUser user, Node left, Node right )
+    {
+      this.nick = nick;
+      this.user = user;
+      this.left = left;
+      this.right = right;
+      this.height = 1 + Math.max(height(left), height(right));
+    }
+  }
+
+  private final Node root;
+  private final int size;
+  private final long version;
+
+  private UserList ( Node root, int size, long version )
+  {
+    this.root = root;
+    this.size = size;
+    this.version = version;
+  }
+
+  // users must be in nick order with no nick twice. Takes O(n), for
+  // swapping in a whole NAMES reply at once.
+  static UserList fromSorted ( Collection users, long version )
+  {
+    IrcChannelUser[] a = (IrcChannelUser[])users.toArray(new IrcChannelUser[users.size()]);
+    return new UserList(build(a, 0, a.length), a.length, version);
+  }
+
+  private static Node build ( IrcChannelUser[] a, int from, int to )
+  {
+    if(from >= to)
+      return null;
+    int mid = (from + to) >>> 1;
+    return new Node(a[mid].getNick(), a[mid], build(a, from, mid), build(a, mid + 1, to));
+  }
+
+  public long getVersion ()
+  {
+    return version;
+  }
+
+  public int size ()
+  {
+    return size;
+  }
+
+  // Returns null if nobody has that nick
+  public IrcChannelUser get ( IrcString nick )
+  {
+    Node n = root;
+    while(n != null)
+    {
+      int c = nick.compareTo(n.nick);
+      if(c == 0)
+        return n.user;
+      n = c < 0 ? n.left : n.right;
+    }
+    return null;
+  }
+
+  // Adds the user under their nick, replacing anyone already there
+  UserList put ( IrcChannelUser u )
+  {
+    boolean[] added = new boolean[1];
+    Node r = put(root, u.getNick(), u, added);
+    return new UserList(r, added[0] ? size + 1 : size, version + 1);
+  }
+
+  // Returns this list if nobody has the nick
+  UserList remove ( IrcString nick )
+  {
+    if(get(nick) == null)
+      return this;
+    return new UserList(remove(root, nick), size - 1, version + 1);
+  }
+
+  // An empty list that is newer than this one
+  UserList emptied ()
+  {
+    return new UserList(null, 0, version + 1);
+  }
+
+  private static int height ( Node n )
+  {
+    return n == null ? 0 : n.height;
+  }
+
+  private static Node put ( Node n, IrcString nick, IrcChannelUser u, boolean[] added )
+  {
+    if(n == null)
+    {
+      added[0] = true;
+      return new Node(nick, u, null, null);
+    }
+    int c = nick.compareTo(n.nick);
+    if(c == 0)
+      return new Node(nick, u, n.left, n.right);
+    if(c < 0)
+      return balance(n.nick, n.user, put(n.left, nick, u, added), n.right);
+    return balance(n.nick, n.user, n.left, put(n.right, nick, u, added));
+  }
+
+  // nick must be present
+  private static Node remove ( Node n, IrcString nick )
+  {
+    int c = nick.compareTo(n.nick);
+    if(c < 0)
+      return balance(n.nick, n.user, remove(n.left, nick), n.right);
+    if(c > 0)
+      return balance(n.nick, n.user, n.left, remove(n.right, nick));
+    if(n.left == null)
+      return n.right;
+    if(n.right == null)
+      return n.left;
+    // Replace with the smallest node on the right
+    Node min = n.right;
+    while(min.left != null)
+      min = min.left;
+    return balance(min.nick, min.user, n.left, removeMin(n.right));
+  }
+
+  private static Node removeMin ( Node n )
+  {
+    if(n.left == null)
+      return n.right;
+    return balance(n.nick, n.user, removeMin(n.left), n.right);
+  }
+
+  // A node with the given children, rotated if their heights differ by
+  // more than one
+  private static Node balance ( IrcString nick, IrcChannelUser u, Node l, Node r )
+  {
+    int hl = height(l), hr = height(r);
+    if(hl > hr + 1)
+    {
+      if(height(l.left) >= height(l.right))
+        return new Node(l.nick, l.user, l.left, new Node(nick, u, l.right, r));
+      return new Node(l.right.nick, l.right.user,
+          new Node(l.nick, l.user, l.left, l.right.left),
+          new Node(nick, u, l.right.right, r));
+    }
+    if(hr > hl + 1)
+    {
+      if(height(r.right) >= height(r.left))
+        return new Node(r.nick, r.user, new Node(nick, u, l, r.left), r.right);
+      return new Node(r.left.nick, r.left.user,
+          new Node(nick, u, l, r.left.left),
+          new Node(r.nick, r.user, r.left.right, r.right));
+    }
+    return new Node(nick, u, l, r);
+  }
+
+  // The IrcChannelUsers in nick order
+  public Iterator iterator ()
+  {
+    return new NodeIterator(null, false);
+  }
+
+  // The nicks from the first one not before from, in order
+  public Iterator nicks ( IrcString from )
+  {
+    return new NodeIterator(from, true);
+  }
+
+  private class NodeIterator implements Iterator
+  {
+    // Nodes still to visit, along with their right subtrees
+    private final Node[] stack = new Node[height(root) + 1];
+    private int depth;
+    private final boolean nicks;
+
+    NodeIterator ( IrcString from, boolean nicks )
+    {
+      this.nicks = nicks;
+      Node n = root;
+      while(n != null)
+      {
+        if(from != null && from.compareTo(n.nick) > 0)
+        {
+          n = n.right;
+        } else
+        {
+          stack[depth++] = n;
+          n = n.left;
+        }
+      }
+    }
+
+    public boolean hasNext ()
+    {
+      return depth > 0;
+    }
+
+    public Object next ()
+    {
+      if(depth == 0)
+        throw new NoSuchElementException();
+      Node n = stack[--depth];
+      for(Node m=n.right;m!=null;m=m.left)
+        stack[depth++] = m;
+      return nicks ? (Object)n.nick : (Object)n.user;
+    }
+
+    public void remove ()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
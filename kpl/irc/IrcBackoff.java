@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.*;
+
+/**
+ * Exponential backoff with jitter, for reconnecting. Each delay is drawn
+ * at random from the upper half of a window that doubles on every
+ * failure up to a maximum, so many clients dropped at once by a netsplit
+ * or restart do not all come back in the same second.
+ */
+public class IrcBackoff
+{
+  private final long minMillis, maxMillis;
+  private final Random random;
+  private int attempts;
+
+  public IrcBackoff ( long minMillis, long maxMillis )
+  {
+    if(minMillis <= 0 || maxMillis < minMillis)
+      throw new IllegalArgumentException("Bad backoff range " + minMillis + "-" + maxMillis);
+    this.minMillis = minMillis;
+    this.maxMillis = maxMillis;
+    random = new Random();
+    attempts = 0;
+  }
+
+  // The delay before the next attempt. Each call counts as a failure.
+  synchronized public long nextDelayMillis ()
+  {
+    long window = minMillis;
+    for(int i=0;i<attempts && window < maxMillis;i++)
+      window *= 2;
+    if(window > maxMillis)
+      window = maxMillis;
+    attempts++;
+    long half = window / 2;
+    return half + (long)(random.nextDouble() * (window - half + 1));
+  }
+
+  // Call once a connection has succeeded
+  synchronized public void reset ()
+  {
+    attempts = 0;
+  }
+
+  synchronized public int getAttempts ()
+  {
+    return attempts;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.util.zip.*;
+
+// Reads back the files IrcRecorder writes. The same buffer is returned
+// for every line, so copy out whatever is needed before the next call.
+public class IrcCaptureReader
+{
+  private final InputStream in;
+  private byte[] line;
+  private int length;
+  private long delayMillis;
+
+  public IrcCaptureReader ( String fileName ) throws IOException
+  {
+    InputStream i = new FileInputStream(fileName);
+    if(fileName.endsWith(".gz"))
+      i = new GZIPInputStream(i);
+    in = new BufferedInputStream(i, 65536);
+    line = new byte[512];
+
+    byte[] magic = new byte[IrcRecorder.MAGIC.length];
+    readFully(magic, magic.length);
+    for(int j=0;j<magic.length;j++)
+    {
+      if(magic[j] != IrcRecorder.MAGIC[j])
+      {
+        in.close();
+        throw new IOException(fileName + " is not a capture file");
+      }
+    }
+  }
+
+  private void readFully ( byte[] b, int len ) throws IOException
+  {
+    int n = 0;
+    while(n < len)
+    {
+      int r = in.read(b, n, len - n);
+      if(r < 0)
+        throw new EOFException("Capture file truncated");
+      n += r;
+    }
+  }
+
+  // Returns -1 at a clean end of file
+  private long readVarint () throws IOException
+  {
+    long v = 0;
+    int shift = 0;
+    int b = in.read();
+    if(b < 0)
+      return -1;
+    while(true)
+    {
+      v |= (long)(b & 0x7F) << shift;
+      if((b & 0x80) == 0)
+        return v;
+      shift += 7;
+      b = in.read();
+      if(b < 0 || shift > 63)
+        throw new EOFException("Capture file truncated");
+    }
+  }
+
+  // Move on to the next line. Returns false at the end of the capture.
+  public boolean next () throws IOException
+  {
+    long delay = readVarint();
+    if(delay < 0)
+      return false;
+    long len = readVarint();
+    if(len < 0 || len > Integer.MAX_VALUE)
+      throw new EOFException("Capture file truncated");
+    if(len > line.length)
+      line = new byte[(int)Math.max(len, line.length * 2)];
+    readFully(line, (int)len);
+    length = (int)len;
+    delayMillis = delay;
+    return true;
+  }
+
+  public byte[] getLine ()
+  {
+    return line;
+  }
+
+  public int getLength ()
+  {
+    return length;
+  }
+
+  // Time between the previous line and this one when it was recorded
+  public long getDelayMillis ()
+  {
+    return delayMillis;
+  }
+
+  public void close () throws IOException
+  {
+    in.close();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+
+/**
+ * The rules a server uses to decide whether two nicks or channel names
+ * are the same, as advertised by the CASEMAPPING token of RPL_ISUPPORT.
+ * All three mappings lower case A-Z; rfc1459 additionally treats []\^
+ * as the upper case forms of {}|~, and strict-rfc1459 does the same for
+ * []\ only. Characters outside ASCII are never folded.
+ */
+public final class IrcCaseMapping
+{
+  public static final IrcCaseMapping ASCII = new IrcCaseMapping("ascii", 'Z');
+  public static final IrcCaseMapping RFC1459 = new IrcCaseMapping("rfc1459", '^');
+  public static final IrcCaseMapping STRICT_RFC1459 = new IrcCaseMapping("strict-rfc1459", ']');
+
+  private final String name;
+  // Characters from 'A' to lastUpper inclusive fold to the character 32
+  // places above them
+  private final char lastUpper;
+
+  private IrcCaseMapping ( String name, char lastUpper )
+  {
+    this.name = name;
+    this.lastUpper = lastUpper;
+  }
+
+  // Returns null if the server named a mapping we do not know
+  public static IrcCaseMapping forName ( String name )
+  {
+    if(name.equalsIgnoreCase(ASCII.name))
+      return ASCII;
+    if(name.equalsIgnoreCase(RFC1459.name))
+      return RFC1459;
+    if(name.equalsIgnoreCase(STRICT_RFC1459.name))
+      return STRICT_RFC1459;
+    return null;
+  }
+
+  public String getName ()
+  {
+    return name;
+  }
+
+  private boolean isUpper ( char c )
+  {
+    return c >= 'A' && c <= lastUpper;
+  }
+
+  // Returns s itself when there is nothing to fold, so already lower
+  // case names cost no allocation
+  public String fold ( String s )
+  {
+    int len = s.length();
+    int i = 0;
+    while(i < len && !isUpper(s.charAt(i)))
+      i++;
+    if(i == len)
+      return s;
+
+    char[] arr = s.toCharArray();
+    for(;i<len;i++)
+    {
+      if(isUpper(arr[i]))
+        arr[i] += 32;
+    }
+    return new String(arr);
+  }
+
+  public String toString ()
+  {
+    return name;
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Decides how a connection turns bytes into text and back. By default
+ * text is tried as UTF-8 and, if that turns out to be malformed, decoded
+ * with a fallback charset (windows-1252 unless told otherwise); outgoing
+ * text is UTF-8. The server as a whole, or any channel or nick, can
+ * instead be given a fixed charset used in both directions.
+ *
+ * Decoders are kept per thread and reused, as CharsetDecoders are
+ * expensive to make and not thread safe.
+ */
+public class IrcCharsets
+{
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  // null means UTF-8 first, then fallback
+  private volatile Charset serverCharset;
+  private volatile Charset fallback;
+  // Folded target name -> Charset. Replaced, never modified.
+  private volatile Map overrides;
+
+  // Per thread: Charset -> CharsetDecoder, plus a reusable output buffer
+  private static class Decoders
+  {
+    Map decoders = new HashMap();
+    CharBuffer out = CharBuffer.allocate(512);
+
+    CharsetDecoder get ( Charset cs )
+    {
+      CharsetDecoder d = (CharsetDecoder)decoders.get(cs);
+      if(d == null)
+      {
+        d = cs.newDecoder();
+        decoders.put(cs, d);
+      }
+      return d;
+    }
+  }
+
+  private static final ThreadLocal decoders = new ThreadLocal()
+    {
+      protected Object initialValue ()
+      {
+        return new Decoders();
+      }
+    };
+
+  public IrcCharsets ()
+  {
+    serverCharset = null;
+    fallback = Charset.forName("windows-1252");
+    overrides = new HashMap();
+  }
+
+  // Names are as for Charset.forName; null or "auto" means UTF-8 with
+  // fallback
+  private static Charset lookup ( String name )
+  {
+    if(name == null || name.equalsIgnoreCase("auto"))
+      return null;
+    return Charset.forName(name);
+  }
+
+  public void setServerCharset ( String name )
+  {
+    serverCharset = lookup(name);
+  }
+
+  public void setFallbackCharset ( String name )
+  {
+    Charset cs = lookup(name);
+    fallback = cs != null ? cs : LATIN1;
+  }
+
+  // Use the given charset for everything to and from target, or go back
+  // to the server's charset if name is null
+  synchronized public void setTargetCharset ( IrcString target, String name )
+  {
+    Map m = new HashMap(overrides);
+    Charset cs = lookup(name);
+    if(cs == null)
+      m.remove(target.getFolded());
+    else
+      m.put(target.getFolded(), cs);
+    overrides = m;
+  }
+
+  // Describes the charset used for target, or the server if target is
+  // null
+  public String describe ( IrcString target )
+  {
+    Charset cs = target != null ? (Charset)overrides.get(target.getFolded()) : null;
+    if(cs == null)
+      cs = serverCharset;
+    if(cs == null)
+      return "auto (UTF-8, falling back to " + fallback.name() + ")";
+    return cs.name();
+  }
+
+  private static boolean isAscii ( byte[] b, int start, int end )
+  {
+    for(int i=start;i<end;i++)
+    {
+      if(b[i] < 0)
+        return false;
+    }
+    return true;
+  }
+
+  // The fixed charset that applies to command c, or null for auto
+  Charset charsetFor ( IrcCommand c )
+  {
+    Map m = overrides;
+    if(m.isEmpty())
+      return serverCharset;
+
+    String target = c.getCharsetTarget();
+    if(target != null)
+    {
+      Charset cs = (Charset)m.get(c.getCaseMapping().fold(target));
+      if(cs != null)
+        return cs;
+    }
+    return serverCharset;
+  }
+
+  // Decode bytes [start, end) of b. cs is as returned by charsetFor.
+  String decode ( byte[] b, int start, int end, Charset cs )
+  {
+    // Nearly everything on IRC is plain ASCII, which reads the same in
+    // any charset we are likely to be given
+    if(isAscii(b, start, end))
+    {
+      char[] chars = new char[end - start];
+      for(int i=start;i<end;i++)
+        chars[i-start] = (char)b[i];
+      return new String(chars);
+    }
+
+    Decoders d = (Decoders)decoders.get();
+    if(cs != null)
+      return decode(d, cs, b, start, end, CodingErrorAction.REPLACE);
+
+    String s = decode(d, UTF8, b, start, end, CodingErrorAction.REPORT);
+    if(s != null)
+      return s;
+    return decode(d, fallback, b, start, end, CodingErrorAction.REPLACE);
+  }
+
+  // Returns null if the input is malformed and errors are reported
+  private static String decode ( Decoders d, Charset cs, byte[] b, int start, int end, CodingErrorAction onError )
+  {
+    CharsetDecoder dec = d.get(cs);
+    dec.reset();
+    dec.onMalformedInput(onError);
+    dec.onUnmappableCharacter(onError);
+
+    int needed = (int)Math.ceil((end - start) * (double)dec.maxCharsPerByte());
+    if(d.out.capacity() < needed)
+      d.out = CharBuffer.allocate(needed);
+    CharBuffer out = d.out;
+    out.clear();
+
+    CoderResult r = dec.decode(ByteBuffer.wrap(b, start, end - start), out, true);
+    if(!r.isUnderflow())
+      return null;
+    r = dec.flush(out);
+    if(!r.isUnderflow())
+      return null;
+    return new String(out.array(), 0, out.position());
+  }
+
+  // Encode a line we are sending. Its first parameter, if any, is
+  // taken to be its target.
+  byte[] encode ( String line, IrcCommand c )
+  {
+    Charset cs = null;
+    Map m = overrides;
+    if(!m.isEmpty() && c.getArgCount() > 1)
+      cs = (Charset)m.get(c.getArg(1).getFolded());
+    if(cs == null)
+      cs = serverCharset;
+    if(cs == null)
+      cs = UTF8;
+    // Characters the charset can't hold become its replacement, usually ?
+    ByteBuffer buf = cs.encode(line);
+    byte[] out = new byte[buf.remaining()];
+    buf.get(out);
+    return out;
+  }
+}
@@ -19,38 +19,336 @@
 package kpl.irc;
 import java.util.*;
 
+// A command is parsed in a single pass over the raw bytes of the line,
+// recording only where the prefix and each argument start and end.
+// Nothing is turned into a String until someone asks for it.
 public class IrcCommand
 {
-  IrcPrefix prefix;
-  // A vector of IrcStrings
-  Vector args;
+  // RFC 1459 allows up to 15 parameters plus the command itself
+  private static final int DEFAULT_MAX_ARGS = 16;
+
+  // The raw line, without the trailing CR/LF
+  private final byte[] line;
+  private int tagStart, tagEnd;
+  private int prefixStart, prefixEnd;
+  private int[] argStart, argEnd;
+  private int numArgs;
+
+  // Decoded lazily, see getArg() and getPrefix(), by whichever thread
+  // asks first. IrcString and IrcPrefix only have final fields, so
+  // another thread that sees one sees all of it; at worst two threads
+  // both decode the same thing.
+  private IrcString[] decodedArgs;
+  private IrcPrefix prefix;
+  // Set by the connection before the command is published, and not
+  // changed after
+  private IrcCaseMapping caseMapping;
+  private IrcPrefixCache prefixCache;
+  private IrcCharsets charsets;
+  // Fixed charset for this line, worked out by setCharsets
+  private java.nio.charset.Charset charset;
+  // Set for lines we made from a String to send, which are held as UTF-8
+  private boolean fromString;
  
   public IrcString getArg ( int i )
   {
-    return (IrcString)args.elementAt(i);
+    if(i < 0 || i >= numArgs)
+    {
+      throw new ArrayIndexOutOfBoundsException(i);
+    }
+    IrcString arg = decodedArgs[i];
+    if(arg == null)
+    {
+      arg = new IrcString(decode(argStart[i], argEnd[i]), caseMapping);
+      decodedArgs[i] = arg;
+    }
+    return arg;
+  }
+
+  public int getArgCount ()
+  {
+    return numArgs;
+  }
+
+  // Returns the command as a number if it is a three digit numeric
+  // reply, or -1 otherwise
+  public int getNumeric ()
+  {
+    int start = argStart[0];
+    if(argEnd[0] - start != 3)
+      return -1;
+    int n = 0;
+    for(int i=start;i<start+3;i++)
+    {
+      int d = line[i] - '0';
+      if(d < 0 || d > 9)
+        return -1;
+      n = n * 10 + d;
+    }
+    return n;
+  }
+
+  // Hash of the command word, ignoring case. Must match
+  // IrcCommandTable.hash.
+  int hashCommand ( int seed )
+  {
+    int h = 0;
+    for(int i=argStart[0];i<argEnd[0];i++)
+    {
+      h = h * seed + (line[i] & 0xDF);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  // Hands the raw line, as read, to a recorder
+  void recordTo ( IrcRecorder r )
+  {
+    r.record(line, 0, line.length);
+  }
+
+  // Compare the command word against an upper case ASCII verb without
+  // decoding it
+  boolean commandEquals ( String verb )
+  {
+    int start = argStart[0];
+    int len = argEnd[0] - start;
+    if(len != verb.length())
+      return false;
+    for(int i=0;i<len;i++)
+    {
+      int b = line[start+i];
+      if(b >= 'a' && b <= 'z')
+        b -= 32;
+      if(b != verb.charAt(i))
+        return false;
+    }
+    return true;
+  }
+
+  // Returns null if the line had no prefix
+  public IrcPrefix getPrefix ()
+  {
+    if(prefix == null && prefixEnd > prefixStart)
+    {
+      if(prefixCache != null)
+        prefix = prefixCache.get(line, prefixStart, prefixEnd, caseMapping, charsets, charset);
+      else
+        prefix = new IrcPrefix(new StringBuffer(decode(prefixStart, prefixEnd)), caseMapping);
+    }
+    return prefix;
+  }
+
+  public boolean hasTags ()
+  {
+    return tagEnd > tagStart;
+  }
+
+  // Returns the unescaped value of an IRCv3 message tag, "" if the tag
+  // is present without a value, or null if it is not present. The tag
+  // section is scanned on each call, so lines nobody asks about cost
+  // nothing beyond finding where the section ends.
+  public String getTag ( String key )
+  {
+    int i = tagStart;
+    while(i < tagEnd)
+    {
+      int keyStart = i;
+      while(i < tagEnd && line[i] != '=' && line[i] != ';')
+        i++;
+      int keyEnd = i;
+      int valueStart = i, valueEnd = i;
+      if(i < tagEnd && line[i] == '=')
+      {
+        valueStart = ++i;
+        while(i < tagEnd && line[i] != ';')
+          i++;
+        valueEnd = i;
+      }
+      i++;
+
+      if(bytesEqual(keyStart, keyEnd, key))
+        return unescapeTagValue(valueStart, valueEnd);
+    }
+    return null;
+  }
+
+  // Every tag on the line, key to unescaped value
+  public Map getTags ()
+  {
+    Map out = new TreeMap();
+    int i = tagStart;
+    while(i < tagEnd)
+    {
+      int keyStart = i;
+      while(i < tagEnd && line[i] != '=' && line[i] != ';')
+        i++;
+      String key = decodeUtf8(keyStart, i);
+      String value = "";
+      if(i < tagEnd && line[i] == '=')
+      {
+        int valueStart = ++i;
+        while(i < tagEnd && line[i] != ';')
+          i++;
+        value = unescapeTagValue(valueStart, i);
+      }
+      i++;
+      if(key.length() > 0)
+        out.put(key, value);
+    }
+    return out;
+  }
+
+  // server-time, as milliseconds since the epoch, or -1 if the tag is
+  // missing or unreadable
+  public long getServerTime ()
+  {
+    String time = getTag("time");
+    if(time == null)
+      return -1;
+    try
+    {
+      // eg. 2011-10-19T16:40:51.620Z
+      java.text.SimpleDateFormat f = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+      f.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return f.parse(time).getTime();
+    } catch ( java.text.ParseException e )
+    {
+      return -1;
+    }
+  }
+
+  public String getMsgId ()
+  {
+    return getTag("msgid");
+  }
+
+  public String getAccount ()
+  {
+    return getTag("account");
+  }
+
+  public String getBatch ()
+  {
+    return getTag("batch");
+  }
+
+  public String getLabel ()
+  {
+    return getTag("label");
+  }
+
+  private boolean bytesEqual ( int start, int end, String s )
+  {
+    if(end - start != s.length())
+      return false;
+    for(int i=0;i<s.length();i++)
+    {
+      if(line[start+i] != (byte)s.charAt(i))
+        return false;
+    }
+    return true;
+  }
+
+  // Tag values are always UTF-8, whatever the rest of the line is in
+  private String decodeUtf8 ( int start, int end )
+  {
+    return utf8(line, start, end);
+  }
+
+  private static String utf8 ( byte[] b, int start, int end )
+  {
+    try
+    {
+      return new String(b, start, end - start, "UTF-8");
+    } catch ( java.io.UnsupportedEncodingException e )
+    {
+      // Every JVM has UTF-8
+      throw new IllegalStateException(e.toString());
+    }
+  }
+
+  private String unescapeTagValue ( int start, int end )
+  {
+    String raw = decodeUtf8(start, end);
+    if(raw.indexOf('\\') == -1)
+      return raw;
+
+    StringBuffer out = new StringBuffer(raw.length());
+    for(int i=0;i<raw.length();i++)
+    {
+      char c = raw.charAt(i);
+      if(c != '\\')
+      {
+        out.append(c);
+        continue;
+      }
+      // A lone backslash at the end is dropped
+      if(++i == raw.length())
+        break;
+      c = raw.charAt(i);
+      switch(c)
+      {
+        case ':': out.append(';'); break;
+        case 's': out.append(' '); break;
+        case 'r': out.append('\r'); break;
+        case 'n': out.append('\n'); break;
+        default: out.append(c); break;
+      }
+    }
+    return out.toString();
+  }
+
+  // Sets how arguments decoded from now on fold case. Called by the
+  // connection before the command is handed to anyone.
+  void setCaseMapping ( IrcCaseMapping m )
+  {
+    caseMapping = m;
+  }
+
+  // Decode text with the given connection's charsets. Works out the
+  // charset for this line now, on the reading thread, so decoding later
+  // on any thread needs nothing more from the command. Call after
+  // setCaseMapping.
+  void setCharsets ( IrcCharsets c )
+  {
+    charsets = c;
+    charset = c != null ? c.charsetFor(this) : null;
+  }
+
+  // Share prefixes with other lines through the given cache
+  void setPrefixCache ( IrcPrefixCache cache )
+  {
+    prefixCache = cache;
   }
   
   public String toString()
   {
     StringBuffer out = new StringBuffer();
+
+    if(hasTags())
+    {
+      out.append('@');
+      out.append(decodeUtf8(tagStart, tagEnd));
+      out.append(' ');
+    }
     
-    if(prefix != null)
+    if(getPrefix() != null)
     {
       out.append(':');
       out.append(prefix.toString());
       out.append(' ');
     }
 
-    for(int i=0;i<args.size();i++)
+    for(int i=0;i<numArgs;i++)
     {
-      if(i == args.size()-1)
+      if(i == numArgs-1)
       {
         // Just in case...
         out.append(':');
       }
-      out.append(args.elementAt(i).toString());
+      out.append(getArg(i).toString());
 
-      if(i < args.size()-1)
+      if(i < numArgs-1)
       {
         out.append(' ');
       }
@@ -58,70 +356,160 @@ public class IrcCommand
 
     return out.toString();
   }
-  
-  private StringBuffer readNonSpaces( StringBuffer buf )
+
+  private String decode ( int start, int end )
   {
-    StringBuffer out = new StringBuffer();
-    while(buf.length() > 0 && buf.charAt(0) != ' ')
+    if(fromString)
+      return utf8(line, start, end);
+    if(charsets == null)
+      return new String(line, start, end - start);
+    return charsets.decode(line, start, end, charset);
+  }
+
+  // The channel or nick whose charset applies to this line: the first
+  // argument that looks like a channel, or failing that whoever sent it.
+  // Read as plain bytes, since we need it before we know how to decode.
+  String getCharsetTarget ()
+  {
+    for(int i=1;i<numArgs;i++)
     {
-      out.append(buf.charAt(0));
-      buf.deleteCharAt(0);
+      byte b = line[argStart[i]];
+      if(b == '#' || b == '&')
+        return latin1(argStart[i], argEnd[i]);
     }
-    return out;
+    if(prefixEnd > prefixStart)
+    {
+      int end = prefixStart;
+      while(end < prefixEnd && line[end] != '!')
+        end++;
+      if(end < prefixEnd)
+        return latin1(prefixStart, end);
+    }
+    return null;
   }
 
-  private void readSpaces ( StringBuffer buf )
+  private String latin1 ( int start, int end )
   {
-    while(buf.length() > 0 && buf.charAt(0) == ' ')
+    char[] chars = new char[end - start];
+    for(int i=start;i<end;i++)
+      chars[i-start] = (char)(line[i] & 0xFF);
+    return new String(chars);
+  }
+
+  IrcCaseMapping getCaseMapping ()
+  {
+    return caseMapping;
+  }
+
+  private void addArg ( int start, int end )
+  {
+    // Zero length arguments are dropped, as they always have been
+    if(end <= start)
+      return;
+
+    if(numArgs == argStart.length)
     {
-      buf.deleteCharAt(0);
+      int[] s = new int[numArgs * 2];
+      int[] e = new int[numArgs * 2];
+      System.arraycopy(argStart, 0, s, 0, numArgs);
+      System.arraycopy(argEnd, 0, e, 0, numArgs);
+      argStart = s;
+      argEnd = e;
     }
+    argStart[numArgs] = start;
+    argEnd[numArgs] = end;
+    numArgs++;
   }
-  
-  IrcCommand ( String line ) throws MalformedCommandException
+
+  // Parse len bytes of buf starting at off. buf may be reused by the
+  // caller as soon as this returns; the line is copied exactly once.
+  IrcCommand ( byte[] buf, int off, int len ) throws MalformedCommandException
   {
-    StringBuffer buf = new StringBuffer(line);
-    int i=0;
-    
-    System.out.println("Got Line: \"" + line + "\"");
-    if(buf.length() == 0)
+    if(len == 0)
     {
       throw new MalformedCommandException("Command has zero length");
     }
-    
-    if(buf.charAt(0) == ':')
-    {
-      buf = buf.deleteCharAt(0);
-      prefix = new IrcPrefix(readNonSpaces(buf));
-    } else
+
+    caseMapping = IrcCaseMapping.RFC1459;
+    line = new byte[len];
+    System.arraycopy(buf, off, line, 0, len);
+
+    argStart = new int[DEFAULT_MAX_ARGS];
+    argEnd = new int[DEFAULT_MAX_ARGS];
+    numArgs = 0;
+
+    int i = 0;
+    if(line[0] == '@')
     {
-      prefix = null;
+      // IRCv3 message tags. Only the span is recorded here, see getTag()
+      i = 1;
+      while(i < len && line[i] != ' ')
+        i++;
+      tagStart = 1;
+      tagEnd = i;
+      while(i < len && line[i] == ' ')
+        i++;
     }
     
-    args = new Vector();
-    while(buf.length() > 0)
+    if(i < len && line[i] == ':')
     {
-      readSpaces(buf);
-      IrcString arg;
-      if(buf.length() > 0 && buf.charAt(0) == ':')
-      {
-        buf.deleteCharAt(0);
-        arg = new IrcString(buf);
-        buf = new StringBuffer();
-      } else
-      {
-        arg = new IrcString(readNonSpaces(buf));
-      }
-      if(arg.length() > 0)
+      int start = ++i;
+      while(i < len && line[i] != ' ')
+        i++;
+      prefixStart = start;
+      prefixEnd = i;
+    }
+
+    while(i < len)
+    {
+      while(i < len && line[i] == ' ')
+        i++;
+      if(i == len)
+        break;
+
+      if(line[i] == ':')
       {
-        args.add(arg);
+        // Trailing argument, runs to the end of the line
+        addArg(i + 1, len);
+        break;
       }
+
+      int start = i;
+      while(i < len && line[i] != ' ')
+        i++;
+      addArg(start, i);
     }
 
-    if(args.size() == 0)
+    if(numArgs == 0)
     {
       throw new MalformedCommandException("No args in command");
     }
+
+    decodedArgs = new IrcString[numArgs];
+  }
+  
+  private IrcCommand ( byte[] line ) throws MalformedCommandException
+  {
+    this(line, 0, line.length);
+  }
+  
+  // A line to send. It is held as UTF-8, which loses nothing, so the
+  // text reaches IrcCharsets.encode as it was given rather than through
+  // the platform's charset.
+  IrcCommand ( String line ) throws MalformedCommandException
+  {
+    this(utf8Bytes(line));
+    fromString = true;
   }
-}
 
+  private static byte[] utf8Bytes ( String s )
+  {
+    try
+    {
+      return s.getBytes("UTF-8");
+    } catch ( java.io.UnsupportedEncodingException e )
+    {
+      throw new IllegalStateException(e.toString());
+    }
+  }
+}
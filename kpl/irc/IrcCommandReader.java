@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Splits incoming bytes into IrcCommands. Input either comes from a
+// blocking InputStream (readCommand) or is pushed in from a non-blocking
+// channel (read followed by nextCommand until it returns null).
+class IrcCommandReader
+{
+  private static final int BUFFER_SIZE = 8192;
+  // IRCv3 allows 8191 bytes of tags on top of the usual 512. Anything
+  // longer is thrown away up to the next newline rather than buffered.
+  private static final int MAX_LINE = 8191 + 512;
+
+  private InputStream in;
+  // Reused for every line; bytes [start, filled) are unconsumed input
+  // and everything before scanned is known not to contain a newline.
+  private byte[] buf;
+  private ByteBuffer byteBuf;
+  private int start, scanned, filled;
+  // Dropping the rest of an overlong line
+  private boolean discarding;
+  private IrcStats stats;
+
+  IrcCommandReader ( InputStream s, IrcStats stats )
+  {
+    in = s;
+    this.stats = stats;
+    buf = new byte[BUFFER_SIZE];
+    byteBuf = ByteBuffer.wrap(buf);
+    start = scanned = filled = 0;
+  }
+
+  IrcCommandReader ( IrcStats stats )
+  {
+    this(null, stats);
+  }
+
+  // Returns the next complete command already in the buffer, or null
+  // if more input is needed. Throws once for each line that is too long,
+  // after which reading carries on with the line after it.
+  public IrcCommand nextCommand () throws MalformedCommandException
+  {
+    for(;scanned<filled;scanned++)
+    {
+      if(buf[scanned] == '\n' && discarding)
+      {
+        discarding = false;
+        start = scanned + 1;
+      } else if(buf[scanned] == '\n')
+      {
+        int lineStart = start;
+        int end = scanned;
+        if(end > lineStart && buf[end-1] == '\r')
+          end--;
+        start = ++scanned;
+        // Servers occasionally send blank lines, skip them
+        if(end > lineStart)
+        {
+          long before = System.nanoTime();
+          IrcCommand c = new IrcCommand(buf, lineStart, end - lineStart);
+          stats.parsed(end - lineStart, System.nanoTime() - before);
+          return c;
+        }
+      }
+    }
+    if(discarding)
+    {
+      start = filled;
+    } else if(filled - start > MAX_LINE)
+    {
+      discarding = true;
+      start = filled;
+      throw new MalformedCommandException("Line longer than " + MAX_LINE + " bytes");
+    }
+    return null;
+  }
+
+  // Make sure there is space after filled to read into
+  private void makeRoom ()
+  {
+    // Move any partial line to the front before reading more
+    if(start > 0)
+    {
+      System.arraycopy(buf, start, buf, 0, filled - start);
+      filled -= start;
+      scanned -= start;
+      start = 0;
+    }
+    if(filled == buf.length)
+    {
+      // A line longer than the buffer, but within MAX_LINE
+      byte[] b = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, b, 0, filled);
+      buf = b;
+      byteBuf = ByteBuffer.wrap(buf);
+    }
+  }
+
+  // Append bytes that arrived by some other route, eg. decrypted TLS
+  // data. Follow with nextCommand until it returns null.
+  public void feed ( byte[] b, int off, int len )
+  {
+    makeRoom();
+    while(buf.length - filled < len)
+    {
+      byte[] nb = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, nb, 0, filled);
+      buf = nb;
+      byteBuf = ByteBuffer.wrap(buf);
+    }
+    System.arraycopy(b, off, buf, filled, len);
+    filled += len;
+  }
+
+  // Read whatever the channel has available. Returns the number of
+  // bytes read, or -1 at end of stream.
+  public int read ( ReadableByteChannel ch ) throws IOException
+  {
+    makeRoom();
+    byteBuf.limit(buf.length);
+    byteBuf.position(filled);
+    int n = ch.read(byteBuf);
+    if(n > 0)
+      filled += n;
+    return n;
+  }
+
+  // Block until an IrcCommand is read
+  public IrcCommand readCommand () throws IOException, Exception
+  {
+    IrcCommand c = nextCommand();
+    while(c == null)
+    {
+      makeRoom();
+      int n = in.read(buf, filled, buf.length - filled);
+      if(n < 0)
+      {
+        return null;
+      }
+      filled += n;
+      c = nextCommand();
+    }
+    return c;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.*;
+
+// Maps the command word of a line to whatever handles it, without
+// decoding the word or allocating. Numeric replies index straight into
+// an array; verbs go through a perfect hash that is rebuilt whenever a
+// verb is added, so every lookup is at most one byte comparison.
+class IrcCommandTable
+{
+  private Object[] numerics;
+  // Returned for numerics with nothing of their own in the table
+  private Object defaultNumeric;
+
+  // The verbs we know about, in the order they were added
+  private Vector verbNames, verbValues;
+  // The perfect hash: slot (hash(verb, seed) & mask) holds the verb
+  private String[] slotNames;
+  private Object[] slotValues;
+  private int seed, mask;
+
+  IrcCommandTable ()
+  {
+    numerics = new Object[1000];
+    verbNames = new Vector();
+    verbValues = new Vector();
+    rebuild();
+  }
+
+  private static boolean isNumeric ( String cmd )
+  {
+    return cmd.length() == 3
+      && Character.isDigit(cmd.charAt(0))
+      && Character.isDigit(cmd.charAt(1))
+      && Character.isDigit(cmd.charAt(2));
+  }
+
+  // Must match IrcCommand.hashCommand
+  static int hash ( String verb, int seed )
+  {
+    int h = 0;
+    for(int i=0;i<verb.length();i++)
+    {
+      h = h * seed + (verb.charAt(i) & 0xDF);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  void put ( String cmd, Object value )
+  {
+    if(isNumeric(cmd))
+    {
+      numerics[Integer.parseInt(cmd)] = value;
+      return;
+    }
+
+    cmd = cmd.toUpperCase();
+    int i = verbNames.indexOf(cmd);
+    if(i != -1)
+    {
+      verbValues.set(i, value);
+    } else
+    {
+      verbNames.add(cmd);
+      verbValues.add(value);
+    }
+    rebuild();
+  }
+
+  void setDefaultNumeric ( Object value )
+  {
+    defaultNumeric = value;
+  }
+
+  Object getDefaultNumeric ()
+  {
+    return defaultNumeric;
+  }
+
+  // Find a table size and hash seed under which no two verbs collide
+  private void rebuild ()
+  {
+    int size = 4;
+    while(size < verbNames.size() * 2)
+      size *= 2;
+
+    while(true)
+    {
+      for(int s=31;s<1024;s+=2)
+      {
+        if(tryBuild(size, s))
+          return;
+      }
+      size *= 2;
+    }
+  }
+
+  private boolean tryBuild ( int size, int s )
+  {
+    String[] names = new String[size];
+    Object[] values = new Object[size];
+    for(int i=0;i<verbNames.size();i++)
+    {
+      String verb = (String)verbNames.elementAt(i);
+      int slot = hash(verb, s) & (size - 1);
+      if(names[slot] != null)
+        return false;
+      names[slot] = verb;
+      values[slot] = verbValues.elementAt(i);
+    }
+    slotNames = names;
+    slotValues = values;
+    seed = s;
+    mask = size - 1;
+    return true;
+  }
+
+  // Returns null if nothing handles this command
+  Object lookup ( IrcCommand c )
+  {
+    int n = c.getNumeric();
+    if(n >= 0)
+    {
+      Object value = numerics[n];
+      return value != null ? value : defaultNumeric;
+    }
+
+    int slot = c.hashCommand(seed) & mask;
+    String name = slotNames[slot];
+    if(name != null && c.commandEquals(name))
+      return slotValues[slot];
+    return null;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.util.*;
+
+// Commands are queued in an IrcOutputQueue and written out as fast as
+// its flood control allows. Commands that have to wait are sent later
+// from a shared timer thread.
+class IrcCommandWriter
+{
+  private static final byte[] CRLF = { '\r', '\n' };
+  private static Timer timer = new Timer(true);
+
+  private IrcTransport transport;
+  private IrcOutputQueue queue;
+  private IrcCharsets charsets;
+  private IrcStats stats;
+  private boolean drainScheduled;
+  
+  IrcCommandWriter ( IrcTransport transport, IrcOutputQueue queue, IrcCharsets charsets, IrcStats stats )
+  {
+    this.transport = transport;
+    this.queue = queue;
+    this.charsets = charsets;
+    this.stats = stats;
+    drainScheduled = false;
+  }
+     
+  public void writeCommand ( IrcCommand c )
+  {
+    queue.add(c, IrcOutputQueue.classify(c));
+    drain();
+  }
+
+  public void writeCommands ( IrcCommand[] cs )
+  {
+    synchronized(this)
+    {
+      for(int i=0;i<cs.length;i++)
+        queue.add(cs[i], IrcOutputQueue.classify(cs[i]));
+    }
+    drain();
+  }
+
+  // Send everything the queue will let us in one write, and arrange to
+  // be called again if anything is left
+  synchronized private void drain ()
+  {
+    IrcCommand c = queue.poll();
+    if(c != null)
+    {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream(512);
+      int lines = 0;
+      while(c != null)
+      {
+        byte[] line = charsets.encode(c.toString(), c);
+        buf.write(line, 0, line.length);
+        buf.write(CRLF, 0, CRLF.length);
+        lines++;
+        c = queue.poll();
+      }
+      stats.sent(lines, buf.size());
+      send(buf);
+    }
+
+    long delay = queue.millisUntilNext();
+    if(delay < 0 || drainScheduled)
+      return;
+    drainScheduled = true;
+    timer.schedule(new TimerTask()
+        {
+          public void run ()
+          {
+            synchronized(IrcCommandWriter.this)
+            {
+              drainScheduled = false;
+              try
+              {
+                drain();
+              } catch ( RuntimeException e )
+              {
+                // The timer is shared, and would stop for every
+                // connection if this got out
+                transport.close(e);
+              }
+            }
+          }
+        }, Math.max(delay, 1));
+  }
+
+  private void send ( ByteArrayOutputStream buf )
+  {
+    byte[] b = buf.toByteArray();
+    try
+    {
+      transport.write(b, 0, b.length);
+    } catch ( IOException e )
+    {
+      // Drop the connection, which reports e to listeners through
+      // disconnected() and reconnects if it should
+      transport.close(e);
+    }
+  }
+}
@@ -17,61 +17,45 @@
  */
 
 package kpl.irc;
-import java.net.*;
-import java.io.*;
 import java.lang.*;
 import java.util.*;
 
-class IrcCommandWriter
-{
-  private PrintWriter pw;
-  private OutputStream s;
-  
-  IrcCommandWriter ( OutputStream s )
-  {
-    this.s = s;
-    pw = new PrintWriter(s,true);
-  }
-     
-  synchronized public void writeCommand ( IrcCommand c )
-  {
-    System.setProperty("line.separator", "\r\n");
-    pw.println(c.toString());
-  }
-}
-
-class IrcCommandReader
-{
-  private BufferedReader in;
-
-  IrcCommandReader ( InputStream s )
-  {
-    in = new BufferedReader( new InputStreamReader( s ));
-  }
-
-  // Block until an IrcCommand is read
-  public IrcCommand readCommand () throws IOException, Exception
-  {
-    System.setProperty("line.separator", "\r\n");
-    String line = in.readLine();
-    if(line == null)
-    {
-      return null;
-    }
-    return new IrcCommand ( line );
-  }
-}
-
 public class IrcConnection
 {
-  private Socket serverSocket;
-  private LinkedList listeners;
-  private IrcCommandReader in;
+  private IrcEventBus eventBus;
+  private IrcTransport transport;
+  private IrcReactor reactor;
+  private IrcTls tls;
   private IrcCommandWriter out;
-  private Thread thread;
+  private IrcOutputQueue outputQueue;
+  // Flood control, see IrcOutputQueue
+  private int floodIntervalMillis, floodBurst;
+  private boolean finished;
   private IrcString nick, user, realName;
-  private Map commandMap;
+  private IrcCommandTable commandTable;
   private String hostName;
+  private int port;
+  // Reconnect after losing the connection unless we sent QUIT. Null
+  // means stay disconnected.
+  private IrcBackoff reconnectBackoff;
+  private boolean quitSent;
+  private TimerTask reconnectTask;
+  private Exception lastError;
+  private IrcLagMeter lagMeter;
+  private IrcRegistration registration;
+  private volatile IrcRecorder recorder;
+  private static final Timer reconnectTimer = new Timer(true);
+  // Servers limit lines to 512 bytes including the CRLF
+  private static final int MAX_LINE_BYTES = 510;
+  // Tokens from RPL_ISUPPORT, eg. "CASEMAPPING" -> "rfc1459". Tokens
+  // without a value map to "".
+  private Map isupport;
+  // Set on the reading thread, read by listeners and the GUI
+  private volatile IrcCaseMapping caseMapping;
+  private volatile IrcModeTable modeTable;
+  private IrcPrefixCache prefixCache;
+  private IrcCharsets charsets;
+  private IrcStats stats;
   
   public IrcConnection ( String nick, String user, String realName )
   {
@@ -79,29 +63,48 @@ public class IrcConnection
     this.user = new IrcString ( user );
     this.realName = new IrcString ( realName );
 
-    listeners = new LinkedList();
+    stats = new IrcStats(this);
+    eventBus = new IrcEventBus(stats);
+    isupport = new TreeMap();
+    caseMapping = IrcCaseMapping.RFC1459;
+    modeTable = IrcModeTable.DEFAULT;
+    prefixCache = new IrcPrefixCache();
+    charsets = new IrcCharsets();
+    lagMeter = new IrcLagMeter(this);
+    floodIntervalMillis = 2000;
+    floodBurst = 5;
    
     initCommandMap ();
-    addEventListener ( new FundamentalControl(this) );
+    registration = new IrcRegistration(this);
+    // Capabilities that need nothing more than IrcCommand's tag support
+    registration.addCapability("message-tags");
+    registration.addCapability("server-time");
+    registration.addCapability("account-tag");
+    // Every prefix a user holds, and their user and host, in NAMES
+    registration.addCapability("multi-prefix");
+    registration.addCapability("userhost-in-names");
+    addEventListener ( registration );
   }
   
+  // The listener is called on the thread that reads from the server
   public void addEventListener ( IrcEventListener n )
   {
-    listeners.add(n);
+    eventBus.subscribe(n, false);
   }
- 
-  private void readLoop() throws Exception, IOException
+
+  // An asynchronous listener is called on a thread of its own, so it may
+  // take its time without holding up reading from the server. It still
+  // sees every event, in order.
+  public void addEventListener ( IrcEventListener n, boolean async )
   {
-    IrcCommand c;
+    eventBus.subscribe(n, async);
+  }
 
-    c = in.readCommand();
-    while(c != null)
-    {
-      onCommand(c);
-      c = in.readCommand();
-    }
+  public IrcEventBus getEventBus ()
+  {
+    return eventBus;
   }
-  
+ 
   abstract class commandDefinition
   {
     public final int minArgs;
@@ -114,109 +117,122 @@ public class IrcConnection
   
   void initCommandMap ()
   {
-    commandMap = new TreeMap();
+    commandTable = new IrcCommandTable();
+    
+    // Any numeric without an entry of its own
+    commandTable.setDefaultNumeric(
+        new commandDefinition(1)
+        { public void action ( IrcCommand c, IrcEventListener l )
+          { l.onNumeric( c.getNumeric(), c );
+          }
+        });
     
-    commandMap.put(new IrcString("PING"), 
+    commandTable.put("PING", 
         new commandDefinition(2)
         { public void action ( IrcCommand c, IrcEventListener l )
           { l.onPing( c.getArg(1).toString());
           }
         });
-    commandMap.put(new IrcString("422"), 
+    commandTable.put("422", 
         new commandDefinition(1)
         { public void action ( IrcCommand c, IrcEventListener l )
           { l.onNoMotd();
           }
         });
-    commandMap.put(new IrcString("376"), 
+    commandTable.put("376", 
         new commandDefinition(1)
         { public void action ( IrcCommand c, IrcEventListener l )
           { l.onMotdEnd();
           }
         });
-    commandMap.put(new IrcString("JOIN"),
+    commandTable.put("JOIN",
         new commandDefinition(2)
         { public void action ( IrcCommand c, IrcEventListener l )
-          { if(c.prefix != null)
-              l.onJoin(c.prefix, c.getArg(1));
+          { if(c.getPrefix() != null)
+              l.onJoin(c.getPrefix(), c.getArg(1));
           }
         });
-    commandMap.put(new IrcString("PRIVMSG"),
+    commandTable.put("PRIVMSG",
         new commandDefinition(3)
         { public void action ( IrcCommand c, IrcEventListener l )
-          { if(c.prefix != null)
-              l.onPrivMsg(c.prefix, c.getArg(1), c.getArg(2).toString());
+          { if(c.getPrefix() != null)
+              l.onPrivMsg(c.getPrefix(), c.getArg(1), c.getArg(2).toString());
           }
         });
-    commandMap.put(new IrcString("PART"),
+    commandTable.put("PART",
         new commandDefinition(2)
         { public void action ( IrcCommand c, IrcEventListener l )
-          { if(c.prefix != null)
-              l.onPart(c.prefix, c.getArg(1));
+          { if(c.getPrefix() != null)
+              l.onPart(c.getPrefix(), c.getArg(1));
           }
         });
-    commandMap.put(new IrcString("NICK"),
+    commandTable.put("NICK",
         new commandDefinition(2)
         { public void action ( IrcCommand c, IrcEventListener l )
-          { if(c.prefix != null)
-              l.onNick(c.prefix, c.getArg(1));
+          { if(c.getPrefix() != null)
+              l.onNick(c.getPrefix(), c.getArg(1));
           }
         });
-    commandMap.put(new IrcString("QUIT"),
+    commandTable.put("QUIT",
         new commandDefinition(1)
         { public void action ( IrcCommand c, IrcEventListener l )
-          { if(c.prefix == null)
+          { if(c.getPrefix() == null)
               return;
-            if(c.args.size() > 1)
-              l.onQuit(c.prefix, c.getArg(1).toString());
+            if(c.getArgCount() > 1)
+              l.onQuit(c.getPrefix(), c.getArg(1).toString());
             else
-              l.onQuit(c.prefix, "");
+              l.onQuit(c.getPrefix(), "");
           }
         });
-    commandMap.put(new IrcString("353"),  /* eg. :irc.phobos 353 kingping = #q3mods :kingping */
+    commandTable.put("353",  /* eg. :irc.phobos 353 kingping = #q3mods :kingping */
         new commandDefinition(5)          /*                  0     1     2    3        4     */
         { public void action ( IrcCommand c, IrcEventListener l )
-          { if(c.prefix != null)
+          { if(c.getPrefix() != null)
               l.onNamesList(c.getArg(3), c.getArg(4));
           }
         });
-    commandMap.put(new IrcString("001"), /* Documented in RFC 2812 */
+    commandTable.put("366",  /* eg. :irc.phobos 366 kingping #q3mods :End of /NAMES list. */
+        new commandDefinition(3)
+        { public void action ( IrcCommand c, IrcEventListener l )
+          { l.onNamesEnd(c.getArg(2));
+          }
+        });
+    commandTable.put("001", /* Documented in RFC 2812 */
         new commandDefinition(3)
         { public void action ( IrcCommand c, IrcEventListener l )
           { l.onWelcome( c.getArg(1), c.getArg(2).toString() );
           }
         });
-    commandMap.put(new IrcString("MODE"),
+    commandTable.put("MODE",
         new commandDefinition(3)
         { public void action ( IrcCommand c, IrcEventListener l )
-          { Vector args = new Vector ( c.args );
-            // Take off the command, channel/target, and modes
-            args.remove(0);
-            args.remove(0);
-            args.remove(0);
-            l.onMode( c.prefix, c.getArg(1), c.getArg(2), args );
+          { Vector args = new Vector ();
+            // Skip the command, channel/target, and modes
+            for(int i=3;i<c.getArgCount();i++)
+              args.add(c.getArg(i));
+            l.onMode( c.getPrefix(), c.getArg(1), c.getArg(2), args );
           }
         });
-    commandMap.put(new IrcString("TOPIC"),
+    commandTable.put("TOPIC",
         new commandDefinition(2)
         { public void action ( IrcCommand c, IrcEventListener l )
-          { if(c.prefix != null)
+          { if(c.getPrefix() != null)
             { String topic;
-              if(c.args.size() >= 3)
+              if(c.getArgCount() >= 3)
                 topic = c.getArg(2).toString();
               else
                 topic = "";
-              l.onTopicChange( c.prefix, c.getArg(1), topic );
+              l.onTopicChange( c.getPrefix(), c.getArg(1), topic );
             }
           }
         });
-    commandMap.put(new IrcString("332"),
+    commandTable.put("332",
         new commandDefinition(4)
         { public void action ( IrcCommand c, IrcEventListener l )
           { l.onTopic( c.getArg(2), c.getArg(3).toString() );
           }
         });
-    commandMap.put(new IrcString("331"),
+    commandTable.put("331",
         new commandDefinition(3)
         { public void action ( IrcCommand c, IrcEventListener l )
           { l.onNoTopic( c.getArg(2) );
@@ -224,96 +240,402 @@ public class IrcConnection
         });
   }
 
+  // eg. :irc.example.net 005 nick CASEMAPPING=ascii PREFIX=(ov)@+ :are supported by this server
+  synchronized private void readISupport ( IrcCommand c )
+  {
+    // The first argument is our nick, the last is the human readable text
+    for(int i=2;i<c.getArgCount()-1;i++)
+    {
+      String token = c.getArg(i).toString();
+      int eq = token.indexOf('=');
+      if(token.startsWith("-"))
+        isupport.remove(token.substring(1));
+      else if(eq == -1)
+        isupport.put(token, "");
+      else
+        isupport.put(token.substring(0, eq), token.substring(eq + 1));
+    }
+
+    String mapping = getISupport("CASEMAPPING");
+    if(mapping != null && IrcCaseMapping.forName(mapping) != null)
+      caseMapping = IrcCaseMapping.forName(mapping);
+    modeTable = IrcModeTable.forISupport(getISupport("PREFIX"), getISupport("CHANMODES"));
+  }
+
+  // Returns the value of an RPL_ISUPPORT token, "" if the server sent it
+  // without a value, or null if the server has not sent it
+  synchronized public String getISupport ( String token )
+  {
+    return (String)isupport.get(token);
+  }
+
+  // How text to and from the server, or particular channels and nicks
+  // on it, is encoded
+  public IrcCharsets getCharsets ()
+  {
+    return charsets;
+  }
+
+  // Share charset settings with something that outlives this connection.
+  // Takes effect from the next connect.
+  public void setCharsets ( IrcCharsets c )
+  {
+    charsets = c;
+  }
+
+  // Traffic and timings for this connection, kept across reconnects
+  public IrcStats getStats ()
+  {
+    return stats;
+  }
+
+  public IrcPrefixCache getPrefixCache ()
+  {
+    return prefixCache;
+  }
+
+  public IrcCaseMapping getCaseMapping ()
+  {
+    return caseMapping;
+  }
+
+  // Channel modes as the server describes them in RPL_ISUPPORT. Set
+  // before any event that follows the 005 line is published.
+  public IrcModeTable getModeTable ()
+  {
+    return modeTable;
+  }
+  
   public void onCommand ( IrcCommand c )
   {
-    IrcString cmdStr = c.getArg(0);
-    Iterator it;
+    c.setCaseMapping(caseMapping);
+    c.setPrefixCache(prefixCache);
+    c.setCharsets(charsets);
 
-    it = listeners.iterator();
-    while(it.hasNext())
+    IrcRecorder r = recorder;
+    if(r != null)
+      c.recordTo(r);
+
+    lagMeter.received();
+    if(c.commandEquals("PONG") && c.getArgCount() >= 2
+        && lagMeter.pong(c.getArg(c.getArgCount()-1).toString()))
     {
-      IrcEventListener listener = (IrcEventListener)it.next();
-      listener.onCommand(c);
+      return;
     }
-    
-    if(!commandMap.containsKey(cmdStr))
+    // Answered here rather than by a listener, so it never waits behind
+    // a backlog of events, or for room on the event bus
+    boolean answered = false;
+    if(c.commandEquals("PING") && c.getArgCount() >= 2)
     {
-      return;
+      sendPong(c.getArg(1).toString());
+      answered = true;
     }
-    
-    commandDefinition def = (commandDefinition)commandMap.get(cmdStr);
-    if(c.args.size() < def.minArgs)
+
+    if(c.getNumeric() == 5)
     {
-      throw new RuntimeException("Not enough args to " + cmdStr);
+      readISupport(c);
     }
-    
-    it = listeners.iterator();
-    while(it.hasNext())
-    { 
-      IrcEventListener listener = (IrcEventListener)it.next();
-      def.action(c, listener);
+    // Only count the connection as good once the server has let us in;
+    // one that accepts and then drops us should still back off
+    if(c.getNumeric() == 1 && reconnectBackoff != null)
+    {
+      reconnectBackoff.reset();
     }
+
+    commandDefinition def = (commandDefinition)commandTable.lookup(c);
+    // Too short for its command: dropped like a line that won't parse,
+    // rather than taking the connection down
+    if(def != null && c.getArgCount() < def.minArgs)
+    {
+      return;
+    }
+    
+    int value;
+    if(answered)
+      value = IrcEvent.SUPERSEDED;
+    else if(def == null)
+      value = IrcEvent.RAW_ONLY;
+    else if(def == commandTable.getDefaultNumeric() && c.getNumeric() < 400)
+      value = IrcEvent.LOW_NUMERIC;
+    else
+      value = IrcEvent.KEEP;
+    int slot = IrcStats.slotOf(c);
+    long start = System.nanoTime();
+    eventBus.publish(new IrcEvent(IrcEvent.COMMAND, c, def, value, slot));
+    stats.dispatched(c, slot, System.nanoTime() - start);
   }
   
-  private void onConnect ()
+  // Called by the transport once the socket is connected
+  void connected ()
   {
-    Iterator it = listeners.iterator();
-    while(it.hasNext())
+    lagMeter.start();
+    eventBus.publish(new IrcEvent(IrcEvent.CONNECT, null, null));
+  }
+
+  // Called by the transport when the connection has gone, with the
+  // exception that caused it if there was one
+  void disconnected ( Exception e )
+  {
+    lagMeter.stop();
+    boolean reconnecting;
+    synchronized(this)
+    {
+      lastError = e;
+      reconnecting = reconnectBackoff != null && !quitSent && transport.canReconnect();
+      if(reconnecting)
+        scheduleReconnect();
+      else
+        finished = true;
+    }
+
+    // tell everyone we have disconnected, and whether we are coming back.
+    // Asynchronous listeners may hear of it late, by when hasFinished()
+    // could say otherwise, so the event says how things stood now.
+    eventBus.publish(new IrcEvent(e, reconnecting));
+
+    synchronized(this)
     {
-      IrcEventListener listener = (IrcEventListener)it.next();
-      listener.onConnect();
+      notifyAll();
     }
   }
-  
-  public void connect ( String hn, int p )
+
+  // Called by the lag meter
+  void lagChanged ( long millis )
   {
-    final String hostname = hn;
-    final int port = p;
-    final IrcConnection conn = this;
-   
-    this.hostName = hn;
-    
-    thread = new Thread()
+    eventBus.publish(new IrcEvent(millis));
+  }
+
+  // Called by the lag meter when a ping has gone unanswered too long.
+  // Closing the transport leads to disconnected() and so to a reconnect.
+  void linkDead ( long waitedMillis )
+  {
+    IrcTransport t = transport;
+    if(t != null)
+      t.close(new java.io.IOException("Ping timeout: " + (waitedMillis / 1000) + " seconds"));
+  }
+
+  // The nick we asked for. The server may have given us another, see
+  // getNick().
+  public IrcString getPreferredNick ()
+  {
+    return nick;
+  }
+
+  // Our nick as far as we know: the one the server registered us with,
+  // or the one we are trying to register with
+  public IrcString getNick ()
+  {
+    IrcString n = registration.getNick();
+    return n != null ? n : nick;
+  }
+
+  // Nicks to try, in order, if ours is taken when registering
+  public void setAlternateNicks ( List nicks )
+  {
+    registration.setAlternateNicks(nicks);
+  }
+
+  // Ask for a capability during registration, if the server has it
+  public void addCapability ( String cap )
+  {
+    registration.addCapability(cap);
+  }
+
+  // Whether the server acknowledged the capability on this connection
+  public boolean hasCapability ( String cap )
+  {
+    return registration.hasCapability(cap);
+  }
+
+  public IrcRegistration getRegistration ()
+  {
+    return registration;
+  }
+
+  public IrcLagMeter getLagMeter ()
+  {
+    return lagMeter;
+  }
+
+  // Must hold the lock
+  private void scheduleReconnect ()
+  {
+    final long delay = reconnectBackoff.nextDelayMillis();
+    reconnectTask = new TimerTask()
       {
         public void run ()
         {
-          try
+          synchronized(IrcConnection.this)
           {
-            serverSocket = new Socket(hostname, port);
-    
-            in = new IrcCommandReader(serverSocket.getInputStream());
-            out = new IrcCommandWriter(serverSocket.getOutputStream());
-            
-            conn.onConnect();
-            conn.readLoop();
-           
-            // tell everyone we have disconnected and the thread is about to die
-            Iterator it = listeners.iterator();
-            while(it.hasNext())
-            {
-              IrcEventListener listener = (IrcEventListener)it.next();
-              listener.onDisconnect();
-            }
-          } catch (Exception e)
-          {
-            e.printStackTrace();
-            System.err.println(e);
-            System.exit(-1);
+            // Cancelled while we were waiting for the lock
+            if(reconnectTask != this)
+              return;
+            reconnectTask = null;
           }
+          connect(hostName, port);
         }
       };
-    thread.start();
+    reconnectTimer.schedule(reconnectTask, delay);
+  }
+
+  // Reconnect with jittered exponential backoff whenever the connection
+  // is lost without us having sent QUIT. Pass null to turn this off.
+  public void setAutoReconnect ( IrcBackoff backoff )
+  {
+    synchronized(this)
+    {
+      reconnectBackoff = backoff;
+    }
+    if(backoff == null)
+      cancelReconnect();
+  }
+
+  synchronized public boolean isReconnecting ()
+  {
+    return reconnectTask != null;
+  }
+
+  // Stop a scheduled reconnect, leaving the connection finished.
+  // Listeners hear of it as another disconnect, this time with no
+  // reconnect coming. Returns false if there was nothing to stop, which
+  // includes the reconnect having just started.
+  public boolean cancelReconnect ()
+  {
+    Exception e;
+    synchronized(this)
+    {
+      if(reconnectTask == null)
+        return false;
+      reconnectTask.cancel();
+      reconnectTask = null;
+      finished = true;
+      e = lastError;
+      notifyAll();
+    }
+    eventBus.publish(new IrcEvent(e, false));
+    return true;
+  }
+
+  // Skip the rest of the wait for a scheduled reconnect. Returns false
+  // if there was none.
+  public boolean reconnectNow ()
+  {
+    synchronized(this)
+    {
+      if(reconnectTask == null)
+        return false;
+      reconnectTask.cancel();
+      reconnectTask = null;
+    }
+    connect(hostName, port);
+    return true;
   }
 
-  public boolean hasFinished()
+  // The exception that ended the last connection, or null if it was
+  // closed cleanly
+  synchronized public Exception getLastError ()
   {
-    return thread==null || !thread.isAlive();
+    return lastError;
+  }
+
+  // Connections made after this is called are multiplexed by the given
+  // reactor rather than each getting their own thread. Pass null to go
+  // back to a thread per connection.
+  public void setReactor ( IrcReactor r )
+  {
+    reactor = r;
   }
   
-  public void waitFinished() throws InterruptedException
+  // Connections made after this is called use TLS with the given
+  // settings. Pass null for plain text. Reusing the same IrcTls across
+  // reconnects allows the TLS session to be resumed.
+  public void setTls ( IrcTls t )
+  {
+    tls = t;
+  }
+
+  public IrcTls getTls ()
+  {
+    return tls;
+  }
+
+  // Limit output to one line per intervalMillis, with bursts of up to
+  // burst lines. An interval of 0 turns flood control off.
+  public void setFloodControl ( int intervalMillis, int burst )
+  {
+    floodIntervalMillis = intervalMillis;
+    floodBurst = burst;
+    if(outputQueue != null)
+      outputQueue.setRate(intervalMillis, burst);
+  }
+
+  // Returns null before the first connect
+  public IrcOutputQueue getOutputQueue ()
   {
-    if(!hasFinished())
-      thread.join();
+    return outputQueue;
+  }
+  
+  public void connect ( String hn, int p )
+  {
+    IrcTransport t;
+    if(reactor != null)
+      t = new SelectorTransport(this, reactor);
+    else
+      t = new ThreadTransport(this);
+    t.setTls(tls);
+    open(t, hn, p);
+  }
+
+  // Play a capture instead of connecting to a server. Listeners see the
+  // same events as for a live connection and anything sent is dropped.
+  public void replay ( IrcReplay r )
+  {
+    open(new ReplayTransport(this, r), r.getFileName(), 0);
+  }
+
+  private void open ( IrcTransport t, String hn, int p )
+  {
+    this.hostName = hn;
+    this.port = p;
+
+    transport = t;
+    outputQueue = new IrcOutputQueue(floodIntervalMillis, floodBurst);
+    outputQueue.setStats(stats);
+    out = new IrcCommandWriter(transport, outputQueue, charsets, stats);
+
+    synchronized(this)
+    {
+      finished = false;
+      quitSent = false;
+      lastError = null;
+      isupport.clear();
+      caseMapping = IrcCaseMapping.RFC1459;
+      modeTable = IrcModeTable.DEFAULT;
+    }
+    transport.open(hn, p);
+  }
+
+  // Write every line read from now on to the recorder, or stop if null.
+  // The recorder is not closed here.
+  public void setRecorder ( IrcRecorder r )
+  {
+    recorder = r;
+  }
+
+  public IrcRecorder getRecorder ()
+  {
+    return recorder;
+  }
+
+  synchronized public boolean hasFinished()
+  {
+    return transport==null || finished;
+  }
+  
+  synchronized public void waitFinished() throws InterruptedException
+  {
+    while(!hasFinished())
+      wait();
   }
   
   // There has to be a good reason for converting to an IrcCommand
@@ -340,10 +662,32 @@ public class IrcConnection
   }
   public void sendUser()
   {
-    String localHostName;
-
-    localHostName = serverSocket.getLocalAddress().getHostName();
-    sendCommand("USER " + user + " " + localHostName + " " + hostName + " :" + realName);
+    sendCommand(makeUserCommand());
+  }
+  // The mode and unused fields are what RFC 2812 suggests. Sending our
+  // host name meant a reverse lookup before we could register.
+  String makeUserCommand ()
+  {
+    return "USER " + user + " 0 * :" + realName;
+  }
+  // Queue several commands before any are sent, so they leave in as few
+  // writes as the flood control allows
+  void sendCommands ( String[] cmds )
+  {
+    try
+    {
+      IrcCommand[] cs = new IrcCommand[cmds.length];
+      for(int i=0;i<cmds.length;i++)
+        cs[i] = new IrcCommand(cmds[i]);
+      out.writeCommands(cs);
+    } catch ( MalformedCommandException e )
+    {
+      System.out.println(e);
+    }
+  }
+  public void sendPing( String code )
+  {
+    sendCommand("PING :" + code);
   }
   public void sendPong( String code )
   {
@@ -351,6 +695,10 @@ public class IrcConnection
   }
   public void sendQuit( String why )
   {
+    synchronized(this)
+    {
+      quitSent = true;
+    }
     sendCommand("QUIT :" + why);
   }
   public void sendPrivMsg ( IrcString chan, String line )
@@ -365,13 +713,99 @@ public class IrcConnection
   {
     sendCommand("JOIN " + chan);
   }
+  public void sendJoin ( IrcString chan, String key )
+  {
+    if(key == null || key.length() == 0)
+      sendJoin(chan);
+    else
+      sendCommand("JOIN " + chan + " " + key);
+  }
+  // Join many channels in as few lines as possible, eg. after a
+  // reconnect. keys is parallel to chans and may hold nulls. Keyed
+  // channels go first on each line, as keys are matched to channels by
+  // position.
+  public void sendJoins ( List chans, List keys )
+  {
+    List keyed = new ArrayList(), keyList = new ArrayList(), unkeyed = new ArrayList();
+    for(int i=0;i<chans.size();i++)
+    {
+      String key = keys != null ? (String)keys.get(i) : null;
+      if(key != null && key.length() > 0)
+      {
+        keyed.add(chans.get(i).toString());
+        keyList.add(key);
+      } else
+      {
+        unkeyed.add(chans.get(i).toString());
+      }
+    }
+
+    StringBuffer chanBuf = new StringBuffer(), keyBuf = new StringBuffer();
+    // The writer puts a ':' before the last argument
+    final int base = "JOIN :".length();
+    int lineBytes = base;
+    for(int i=0;i<keyed.size()+unkeyed.size();i++)
+    {
+      boolean hasKey = i < keyed.size();
+      String chan = hasKey ? (String)keyed.get(i) : (String)unkeyed.get(i - keyed.size());
+      String key = hasKey ? (String)keyList.get(i) : null;
+      // Comma or space separators, plus the channel and key themselves
+      int extra = 1 + utf8Length(chan) + (hasKey ? 1 + utf8Length(key) : 0);
+      if(chanBuf.length() > 0 && lineBytes + extra > MAX_LINE_BYTES)
+      {
+        sendJoinLine(chanBuf, keyBuf);
+        lineBytes = base;
+      }
+      if(chanBuf.length() > 0)
+        chanBuf.append(',');
+      chanBuf.append(chan);
+      if(hasKey)
+      {
+        if(keyBuf.length() > 0)
+          keyBuf.append(',');
+        keyBuf.append(key);
+      }
+      lineBytes += extra;
+    }
+    if(chanBuf.length() > 0)
+      sendJoinLine(chanBuf, keyBuf);
+  }
+  private void sendJoinLine ( StringBuffer chanBuf, StringBuffer keyBuf )
+  {
+    if(keyBuf.length() > 0)
+      sendCommand("JOIN " + chanBuf + " " + keyBuf);
+    else
+      sendCommand("JOIN " + chanBuf);
+    chanBuf.setLength(0);
+    keyBuf.setLength(0);
+  }
+  // Our encoding is UTF-8 unless the user picked a charset, which is
+  // never wider, so this is a safe upper bound on the bytes sent
+  private static int utf8Length ( String s )
+  {
+    try
+    {
+      return s.getBytes("UTF-8").length;
+    } catch ( java.io.UnsupportedEncodingException e )
+    {
+      return s.length() * 3;
+    }
+  }
   public void sendNick ( IrcString nick )
   {
     sendCommand("NICK " + nick);
   }
   public void sendRawCommand ( String cmd ) throws MalformedCommandException
   {
-    out.writeCommand(new IrcCommand(cmd));
+    IrcCommand c = new IrcCommand(cmd);
+    if(c.commandEquals("QUIT"))
+    {
+      synchronized(this)
+      {
+        quitSent = true;
+      }
+    }
+    out.writeCommand(c);
   }
   public String getHostName()
   {
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+
+// One thing that happened on a connection, as passed through the
+// IrcEventBus. Events never change once made, and any number of threads
+// can deliver the same event. The IrcCommand inside one is set up before
+// it is published and only decodes its text lazily after that, which is
+// safe from any thread; see IrcCommand.
+final class IrcEvent
+{
+  static final int CONNECT = 0;
+  static final int COMMAND = 1;
+  static final int DISCONNECT = 2;
+  static final int LAG = 3;
+  // Stands in for events an asynchronous listener missed, see
+  // IrcEventBus.setOverloadPolicy
+  static final int OVERLOAD = 4;
+
+  // What is lost if a listener that has fallen behind never sees the
+  // event. IrcEventBus decides from this what to skip when overloaded.
+  static final int KEEP = 0;
+  // A line with no callback of its own, so only seen through onCommand
+  static final int RAW_ONLY = 1;
+  // An informational numeric with no callback of its own
+  static final int LOW_NUMERIC = 2;
+  // Out of date as soon as a newer one comes, or already dealt with,
+  // eg. lag readings and answered PINGs
+  static final int SUPERSEDED = 3;
+
+  final int type;
+  // Only for COMMAND events. handler is null if only onCommand applies.
+  final IrcCommand command;
+  final IrcConnection.commandDefinition handler;
+  // Only for LAG events
+  final long lagMillis;
+  // Only for OVERLOAD events
+  final String summary;
+  // Only for DISCONNECT events, as things stood when the connection went
+  final Exception error;
+  final boolean reconnecting;
+  final int value;
+  // Only for COMMAND events, where IrcStats counts the command
+  final int slot;
+
+  IrcEvent ( int type, IrcCommand command, IrcConnection.commandDefinition handler )
+  {
+    this(type, command, handler, KEEP, -1);
+  }
+
+  IrcEvent ( int type, IrcCommand command, IrcConnection.commandDefinition handler,
+      int value, int slot )
+  {
+    this.type = type;
+    this.command = command;
+    this.handler = handler;
+    this.lagMillis = -1;
+    this.summary = null;
+    this.error = null;
+    this.reconnecting = false;
+    this.value = value;
+    this.slot = slot;
+  }
+
+  IrcEvent ( long lagMillis )
+  {
+    this.type = LAG;
+    this.command = null;
+    this.handler = null;
+    this.lagMillis = lagMillis;
+    this.summary = null;
+    this.error = null;
+    this.reconnecting = false;
+    this.value = SUPERSEDED;
+    this.slot = -1;
+  }
+
+  IrcEvent ( String summary )
+  {
+    this.type = OVERLOAD;
+    this.command = null;
+    this.handler = null;
+    this.lagMillis = -1;
+    this.summary = summary;
+    this.error = null;
+    this.reconnecting = false;
+    this.value = KEEP;
+    this.slot = -1;
+  }
+
+  IrcEvent ( Exception error, boolean reconnecting )
+  {
+    this.type = DISCONNECT;
+    this.command = null;
+    this.handler = null;
+    this.lagMillis = -1;
+    this.summary = null;
+    this.error = error;
+    this.reconnecting = reconnecting;
+    this.value = KEEP;
+    this.slot = -1;
+  }
+
+  void deliverTo ( IrcEventListener l )
+  {
+    switch(type)
+    {
+      case CONNECT:
+        l.onConnect();
+        break;
+      case COMMAND:
+        l.onCommand(command);
+        if(handler != null)
+          handler.action(command, l);
+        break;
+      case DISCONNECT:
+        l.onDisconnect(error, reconnecting);
+        break;
+      case LAG:
+        l.onLag(lagMillis);
+        break;
+      case OVERLOAD:
+        l.onOverload(summary);
+        break;
+    }
+  }
+}
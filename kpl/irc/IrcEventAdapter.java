@@ -30,7 +30,7 @@ public abstract class IrcEventAdapter implements IrcEventListener
   }
   
   public void onConnect () {}
-  public void onDisconnect () {}
+  public void onDisconnect ( Exception why, boolean reconnecting ) {}
   public void onCommand ( IrcCommand c ) {}
   public void onPing ( String code ) {}
   public void onNoMotd() {}
@@ -41,10 +41,14 @@ public abstract class IrcEventAdapter implements IrcEventListener
   public void onNick ( IrcPrefix who, IrcString nick ) {}
   public void onQuit ( IrcPrefix who, String why ) {}
   public void onNamesList ( IrcString where, IrcString names ) {}
+  public void onNamesEnd ( IrcString where ) {}
   public void onWelcome ( IrcString yourNick, String msg ) {}
   public void onMode ( IrcPrefix who, IrcString what, IrcString modeString, Vector args ) {}
   public void onTopicChange ( IrcPrefix who, IrcString where, String newTopic ) {}
   public void onTopic ( IrcString where, String newTopic ) {}
   public void onNoTopic ( IrcString where ) {}
+  public void onNumeric ( int numeric, IrcCommand c ) {}
+  public void onLag ( long millis ) {}
+  public void onOverload ( String summary ) {}
 }
 
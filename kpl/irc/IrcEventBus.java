@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.*;
+
+/**
+ * Hands a connection's events to its listeners. Synchronous listeners
+ * are called straight away on the thread that read the line, as they
+ * always have been. Asynchronous listeners each get their own thread
+ * and cursor into a ring buffer of events, so a slow one (eg. one that
+ * waits on the GUI) falls behind on its own rather than holding up the
+ * socket. The ring grows rather than overwrite events a listener has
+ * not seen yet, up to a limit. Past that the overload policy decides
+ * whether reading waits for room or some events are skipped.
+ */
+public class IrcEventBus
+{
+  private static final int INITIAL_CAPACITY = 256;
+
+  // What publish() does with an event once an asynchronous listener is
+  // as far behind as the capacity allows. Synchronous listeners always
+  // see everything, and lag readings and answered PINGs are skipped
+  // under any policy, as a newer one will be along.
+  //
+  // Wait for room. Reading stops, so the server buffers for us, and may
+  // drop us for it or for not answering PINGs. With an IrcReactor every
+  // connection on it waits.
+  public static final int BLOCK = 0;
+  // Skip lines with no callback of their own, which listeners only see
+  // through onCommand, and tell them how many once they catch up
+  public static final int COALESCE_RAW = 1;
+  // Silently skip informational numerics with no callback of their own
+  public static final int DROP_NUMERICS = 2;
+  // Skip both, and tell listeners how many of each command they missed
+  public static final int SUMMARIZE = 3;
+  private static final String[] POLICY_NAMES = { "block", "coalesce", "dropNumerics", "summarize" };
+
+  // ring[seq % ring.length] holds event number seq, for every seq from
+  // the slowest asynchronous cursor up to published. Slots behind every
+  // cursor are cleared, so old events can be collected. Guarded by this.
+  private IrcEvent[] ring;
+  private long published;
+  private volatile Subscriber[] subscribers;
+  private int capacity;
+  private int policy;
+  // Most events any asynchronous listener has had waiting
+  private int highWater;
+  // Once skipping starts it carries on until the slowest listener is
+  // down to half the capacity, so listeners get one summary for a flood
+  // rather than one per gap
+  private boolean overloaded;
+  // Skipped events, and those not yet reported to listeners with a
+  // summary. pendingCounts maps command to int[1].
+  private long skipped;
+  private int pendingSkipped;
+  private Map pendingCounts;
+  private boolean publisherWaiting;
+  private final IrcStats stats;
+
+  class Subscriber implements Runnable
+  {
+    final IrcEventListener listener;
+    final boolean async;
+    // Sequence number of the next event this subscriber will be given
+    long cursor;
+    long maxLag;
+    long delivered;
+    long busyNanos;
+    Thread thread;
+
+    Subscriber ( IrcEventListener listener, boolean async )
+    {
+      this.listener = listener;
+      this.async = async;
+    }
+
+    void deliver ( IrcEvent e )
+    {
+      long start = System.nanoTime();
+      e.deliverTo(listener);
+      long took = System.nanoTime() - start;
+      stats.delivered(e, took);
+      synchronized(IrcEventBus.this)
+      {
+        busyNanos += took;
+        delivered++;
+        advance(this);
+        if(async && overloaded)
+          checkOverload(subscribers);
+        if(async && publisherWaiting)
+          IrcEventBus.this.notifyAll();
+      }
+    }
+
+    public void run ()
+    {
+      while(true)
+      {
+        IrcEvent e;
+        synchronized(IrcEventBus.this)
+        {
+          while(cursor == published)
+          {
+            try
+            {
+              IrcEventBus.this.wait();
+            } catch ( InterruptedException ex )
+            {
+              thread = null;
+              return;
+            }
+          }
+          e = ring[(int)(cursor % ring.length)];
+        }
+
+        try
+        {
+          deliver(e);
+        } catch ( RuntimeException ex )
+        {
+          // Nobody called us to pass this back to, so it goes where
+          // uncaught exceptions go; the next event may be fine
+          Thread t = Thread.currentThread();
+          t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+          synchronized(IrcEventBus.this)
+          {
+            advance(this);
+            if(publisherWaiting)
+              IrcEventBus.this.notifyAll();
+          }
+        }
+
+        // Nothing more will come until the connection is reopened, so
+        // let the thread go. publish() starts a new one if needed.
+        synchronized(IrcEventBus.this)
+        {
+          if(e.type == IrcEvent.DISCONNECT && cursor == published)
+          {
+            thread = null;
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  IrcEventBus ( IrcStats stats )
+  {
+    this.stats = stats;
+    ring = new IrcEvent[INITIAL_CAPACITY];
+    published = 0;
+    subscribers = new Subscriber[0];
+    capacity = 65536;
+    policy = COALESCE_RAW;
+    pendingCounts = new TreeMap();
+  }
+
+  // The most events an asynchronous listener may fall behind by before
+  // the overload policy applies
+  synchronized public void setCapacity ( int events )
+  {
+    if(events < 1)
+      throw new IllegalArgumentException("Capacity must be at least 1");
+    capacity = events;
+    notifyAll();
+  }
+
+  synchronized public int getCapacity ()
+  {
+    return capacity;
+  }
+
+  // One of BLOCK, COALESCE_RAW, DROP_NUMERICS or SUMMARIZE
+  synchronized public void setOverloadPolicy ( int p )
+  {
+    if(p < BLOCK || p > SUMMARIZE)
+      throw new IllegalArgumentException("No such overload policy: " + p);
+    policy = p;
+    notifyAll();
+  }
+
+  synchronized public int getOverloadPolicy ()
+  {
+    return policy;
+  }
+
+  // Returns null if there is no policy by that name
+  public static Integer policyForName ( String name )
+  {
+    for(int i=0;i<POLICY_NAMES.length;i++)
+    {
+      if(POLICY_NAMES[i].equalsIgnoreCase(name))
+        return Integer.valueOf(i);
+    }
+    return null;
+  }
+
+  public static String policyName ( int p )
+  {
+    return POLICY_NAMES[p];
+  }
+
+  synchronized void subscribe ( IrcEventListener l, boolean async )
+  {
+    Subscriber s = new Subscriber(l, async);
+    // Only events published from now on
+    s.cursor = published;
+    Subscriber[] subs = new Subscriber[subscribers.length + 1];
+    System.arraycopy(subscribers, 0, subs, 0, subscribers.length);
+    subs[subscribers.length] = s;
+    subscribers = subs;
+  }
+
+  // Moves s past the event at its cursor, and lets go of that event if
+  // no other asynchronous subscriber still needs it. Must hold the lock.
+  private void advance ( Subscriber s )
+  {
+    long seq = s.cursor++;
+    if(!s.async)
+      return;
+    Subscriber[] subs = subscribers;
+    for(int i=0;i<subs.length;i++)
+    {
+      if(subs[i].async && subs[i].cursor <= seq)
+        return;
+    }
+    ring[(int)(seq % ring.length)] = null;
+  }
+
+  // Events the slowest asynchronous subscriber has still to see. Must
+  // hold the lock.
+  private int depth ( Subscriber[] subs )
+  {
+    long oldest = published;
+    for(int i=0;i<subs.length;i++)
+    {
+      if(subs[i].async && subs[i].cursor < oldest)
+        oldest = subs[i].cursor;
+    }
+    return (int)(published - oldest);
+  }
+
+  // Make room for one more event without losing any an asynchronous
+  // subscriber has still to see
+  private void ensureCapacity ( Subscriber[] subs )
+  {
+    long oldest = published - depth(subs);
+    if(published - oldest < ring.length)
+      return;
+
+    IrcEvent[] r = new IrcEvent[ring.length * 2];
+    for(long seq=oldest;seq<published;seq++)
+    {
+      r[(int)(seq % r.length)] = ring[(int)(seq % ring.length)];
+    }
+    ring = r;
+  }
+
+  // Whether the policy lets a listener that is too far behind miss e
+  private boolean canSkip ( IrcEvent e )
+  {
+    switch(e.value)
+    {
+      case IrcEvent.SUPERSEDED:
+        return true;
+      case IrcEvent.RAW_ONLY:
+        return policy == COALESCE_RAW || policy == SUMMARIZE;
+      case IrcEvent.LOW_NUMERIC:
+        return policy == DROP_NUMERICS || policy == SUMMARIZE;
+    }
+    return false;
+  }
+
+  // Must hold the lock
+  private void skip ( IrcEvent e )
+  {
+    overloaded = true;
+    skipped++;
+    if(e.value == IrcEvent.SUPERSEDED || policy == DROP_NUMERICS)
+      return;
+    pendingSkipped++;
+    if(policy == SUMMARIZE)
+    {
+      String verb = e.command.getArg(0).toString();
+      int[] n = (int[])pendingCounts.get(verb);
+      if(n == null)
+        pendingCounts.put(verb, n = new int[1]);
+      n[0]++;
+    }
+  }
+
+  // eg. "1200 lines skipped: 900 NOTICE, 300 372". Must hold the lock.
+  private IrcEvent takeSummary ()
+  {
+    StringBuffer out = new StringBuffer();
+    out.append(pendingSkipped).append(pendingSkipped == 1 ? " line" : " lines").append(" skipped");
+    Iterator it = pendingCounts.entrySet().iterator();
+    for(int i=0;it.hasNext();i++)
+    {
+      Map.Entry entry = (Map.Entry)it.next();
+      out.append(i == 0 ? ": " : ", ");
+      out.append(((int[])entry.getValue())[0]).append(' ').append(entry.getKey());
+    }
+    pendingSkipped = 0;
+    pendingCounts.clear();
+    return new IrcEvent(out.toString());
+  }
+
+  // End the overload once the slowest listener has caught up enough,
+  // and tell listeners what they missed. Must hold the lock.
+  private void checkOverload ( Subscriber[] subs )
+  {
+    if(depth(subs) > capacity / 2)
+      return;
+    overloaded = false;
+    if(pendingSkipped > 0)
+    {
+      append(takeSummary(), subs);
+      notifyAll();
+    }
+  }
+
+  // Must hold the lock
+  private void append ( IrcEvent e, Subscriber[] subs )
+  {
+    for(int i=0;i<subs.length;i++)
+    {
+      Subscriber s = subs[i];
+      if(!s.async)
+        continue;
+      long lag = published - s.cursor + 1;
+      if(lag > s.maxLag)
+        s.maxLag = lag;
+      if(lag > highWater)
+        highWater = (int)lag;
+    }
+    ensureCapacity(subs);
+    ring[(int)(published % ring.length)] = e;
+    published++;
+  }
+
+  // Called on the thread that produced the event
+  void publish ( IrcEvent e )
+  {
+    Subscriber[] subs = subscribers;
+    boolean anyAsync = false;
+
+    synchronized(this)
+    {
+      for(int i=0;i<subs.length;i++)
+      {
+        if(subs[i].async)
+          anyAsync = true;
+      }
+
+      boolean skipping = false;
+      if(anyAsync && overloaded)
+        checkOverload(subs);
+      if(anyAsync && overloaded && canSkip(e) && e.type != IrcEvent.DISCONNECT)
+      {
+        skip(e);
+        skipping = true;
+      } else if(anyAsync && depth(subs) >= capacity)
+      {
+        if(canSkip(e))
+        {
+          skip(e);
+          skipping = true;
+        } else
+        {
+          publisherWaiting = true;
+          try
+          {
+            while(depth(subs) >= capacity && !canSkip(e))
+              wait();
+          } catch ( InterruptedException ex )
+          {
+            // Go over capacity rather than lose the event
+            Thread.currentThread().interrupt();
+          }
+          publisherWaiting = false;
+          // The policy may have changed while we waited
+          if(depth(subs) >= capacity && canSkip(e))
+          {
+            skip(e);
+            skipping = true;
+          }
+        }
+      }
+
+      if(!skipping && anyAsync)
+      {
+        // Nothing more will come, so say what was missed now
+        if(pendingSkipped > 0 && e.type == IrcEvent.DISCONNECT)
+          append(takeSummary(), subs);
+        append(e, subs);
+      } else if(!skipping)
+      {
+        published++;
+      }
+
+      for(int i=0;i<subs.length;i++)
+      {
+        Subscriber s = subs[i];
+        if(!s.async)
+        {
+          // Sync subscribers never lag, keep their cursor in step
+          s.cursor = published;
+        } else if(s.thread == null && s.cursor < published)
+        {
+          s.thread = new Thread(s, "IrcEventBus-" + s.listener.getClass().getName());
+          s.thread.setDaemon(true);
+          s.thread.start();
+        }
+      }
+      notifyAll();
+    }
+
+    for(int i=0;i<subs.length;i++)
+    {
+      if(!subs[i].async)
+        subs[i].deliver(e);
+    }
+  }
+
+  private Subscriber find ( IrcEventListener l )
+  {
+    Subscriber[] subs = subscribers;
+    for(int i=0;i<subs.length;i++)
+    {
+      if(subs[i].listener == l)
+        return subs[i];
+    }
+    throw new IllegalArgumentException("Not subscribed: " + l);
+  }
+
+  // Events published that the listener has not finished handling yet
+  synchronized public long getLag ( IrcEventListener l )
+  {
+    Subscriber s = find(l);
+    return s.async ? published - s.cursor : 0;
+  }
+
+  // The most any listener is behind, so zero once everything published
+  // has been handled
+  synchronized public long getLag ()
+  {
+    long lag = 0;
+    Subscriber[] subs = subscribers;
+    for(int i=0;i<subs.length;i++)
+    {
+      if(subs[i].async && published - subs[i].cursor > lag)
+        lag = published - subs[i].cursor;
+    }
+    return lag;
+  }
+
+  // Events waiting for the slowest asynchronous listener
+  synchronized public int getDepth ()
+  {
+    return depth(subscribers);
+  }
+
+  // The most events that have been waiting for any asynchronous
+  // listener
+  synchronized public int getHighWater ()
+  {
+    return highWater;
+  }
+
+  // Events asynchronous listeners missed under the overload policy
+  synchronized public long getSkippedCount ()
+  {
+    return skipped;
+  }
+
+  synchronized public long getMaxLag ( IrcEventListener l )
+  {
+    return find(l).maxLag;
+  }
+
+  synchronized public long getDeliveredCount ( IrcEventListener l )
+  {
+    return find(l).delivered;
+  }
+
+  // Total time the listener has spent handling events
+  synchronized public double getBusyMillis ( IrcEventListener l )
+  {
+    return find(l).busyNanos / 1000000.0;
+  }
+
+  synchronized public String toString ()
+  {
+    StringBuffer out = new StringBuffer();
+    Subscriber[] subs = subscribers;
+    out.append(depth(subs)).append('/').append(capacity).append(" queued, high water ");
+    out.append(highWater).append(", ").append(skipped).append(" skipped (");
+    out.append(POLICY_NAMES[policy]).append(")");
+    for(int i=0;i<subs.length;i++)
+    {
+      Subscriber s = subs[i];
+      out.append(i == 0 ? ": " : ", ");
+      out.append(s.listener.getClass().getName());
+      out.append(s.async ? " (async" : " (sync");
+      out.append(", lag ").append(s.async ? published - s.cursor : 0);
+      out.append(" max ").append(s.maxLag);
+      out.append(", ").append(s.delivered).append(" events in ");
+      out.append(Math.round(s.busyNanos / 1000000.0)).append("ms)");
+    }
+    return out.toString();
+  }
+}
@@ -22,7 +22,9 @@ import java.util.*;
 public interface IrcEventListener
 {
   void onConnect ();
-  void onDisconnect ();
+  // why is what ended the connection, or null if it closed cleanly.
+  // reconnecting is whether a reconnect was scheduled when it ended.
+  void onDisconnect ( Exception why, boolean reconnecting );
   void onCommand ( IrcCommand c );
   void onPing ( String code );
   void onNoMotd();
@@ -33,10 +35,19 @@ public interface IrcEventListener
   void onNick ( IrcPrefix who, IrcString nick );
   void onQuit ( IrcPrefix who, String why );
   void onNamesList ( IrcString where, IrcString names );
+  // RPL_ENDOFNAMES, after the last onNamesList for the channel
+  void onNamesEnd ( IrcString where );
   void onWelcome ( IrcString yourNick, String msg );
   void onMode ( IrcPrefix who, IrcString what, IrcString modeString, Vector args );
   void onTopicChange ( IrcPrefix who, IrcString where, String newTopic );
   void onTopic ( IrcString where, String newTopic );
   void onNoTopic ( IrcString where );
+  // Any numeric reply which has no callback of its own
+  void onNumeric ( int numeric, IrcCommand c );
+  // A new round trip time from IrcLagMeter, or a growing wait for one
+  void onLag ( long millis );
+  // Only for asynchronous listeners: lines were skipped because the
+  // listener fell too far behind, eg. "1200 lines skipped"
+  void onOverload ( String summary );
 }
 
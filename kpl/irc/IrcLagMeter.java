@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.*;
+
+/**
+ * Pings the server whenever nothing has been heard from it for a while,
+ * timing the round trip. If no reply arrives within the timeout the link
+ * is taken to be dead and the connection is closed, which lets a
+ * half-open TCP connection be noticed in seconds rather than whenever
+ * the OS gives up on it. The last WINDOW round trips are kept as a
+ * histogram.
+ */
+public class IrcLagMeter
+{
+  private static final Timer timer = new Timer(true);
+  private static final long TICK_MILLIS = 1000;
+  private static final String TOKEN_PREFIX = "kpIRC-lag-";
+  // Upper bounds of each histogram bucket; the last bucket is unbounded
+  private static final long[] BUCKET_LIMITS = { 50, 100, 200, 500, 1000, 2000, 5000 };
+  private static final int WINDOW = 100;
+
+  private final IrcConnection conn;
+  private long pingIntervalMillis, timeoutMillis;
+  private TimerTask task;
+  // Written for every line read, so not under the lock
+  private volatile long lastReceived;
+  private String outstanding;
+  private long pingSent, lastReported;
+  private long lag;
+  private final long[] samples;
+  private int sampleCount, sampleNext;
+  private int pingsSent, timeouts;
+
+  IrcLagMeter ( IrcConnection conn )
+  {
+    this.conn = conn;
+    pingIntervalMillis = 30000;
+    timeoutMillis = 90000;
+    samples = new long[WINDOW];
+    lag = -1;
+  }
+
+  private static long now ()
+  {
+    return System.nanoTime() / 1000000;
+  }
+
+  // Ping after this long without hearing anything. 0 turns pinging off.
+  synchronized public void setPingInterval ( long millis )
+  {
+    pingIntervalMillis = millis;
+  }
+
+  // Declare the link dead if a ping goes unanswered this long
+  synchronized public void setTimeout ( long millis )
+  {
+    timeoutMillis = millis;
+  }
+
+  synchronized void start ()
+  {
+    stop();
+    lastReceived = now();
+    outstanding = null;
+    lag = -1;
+    lastReported = -1;
+    task = new TimerTask()
+      {
+        public void run ()
+        {
+          tick(this);
+        }
+      };
+    timer.schedule(task, TICK_MILLIS, TICK_MILLIS);
+  }
+
+  synchronized void stop ()
+  {
+    if(task != null)
+      task.cancel();
+    task = null;
+    outstanding = null;
+  }
+
+  void received ()
+  {
+    lastReceived = now();
+  }
+
+  // Returns true if the PONG answered one of our pings, in which case
+  // nobody else needs to see it
+  boolean pong ( String token )
+  {
+    long rtt;
+    synchronized(this)
+    {
+      if(outstanding == null || !outstanding.equals(token))
+        return token.startsWith(TOKEN_PREFIX);
+      rtt = now() - pingSent;
+      outstanding = null;
+      lag = rtt;
+      lastReported = rtt;
+      samples[sampleNext] = rtt;
+      sampleNext = (sampleNext + 1) % WINDOW;
+      if(sampleCount < WINDOW)
+        sampleCount++;
+    }
+    conn.lagChanged(rtt);
+    return true;
+  }
+
+  private void tick ( TimerTask t )
+  {
+    String ping = null;
+    long rising = -1;
+    long dead = -1;
+    synchronized(this)
+    {
+      if(t != task || pingIntervalMillis <= 0)
+        return;
+      long n = now();
+      if(outstanding != null)
+      {
+        long waited = n - pingSent;
+        if(waited > timeoutMillis)
+        {
+          dead = waited;
+          timeouts++;
+          stop();
+        } else if(waited > lag && waited - lastReported >= TICK_MILLIS)
+        {
+          // Show the lag growing while we wait rather than only once
+          // the reply turns up
+          rising = waited;
+          lastReported = waited;
+        }
+      } else if(n - lastReceived >= pingIntervalMillis)
+      {
+        outstanding = TOKEN_PREFIX + n;
+        pingSent = n;
+        pingsSent++;
+        ping = outstanding;
+      }
+    }
+
+    if(dead >= 0)
+      conn.linkDead(dead);
+    else if(rising >= 0)
+      conn.lagChanged(rising);
+    else if(ping != null)
+      conn.sendPing(ping);
+  }
+
+  // The last round trip, or how long the current ping has been waiting
+  // if that is longer. -1 before the first reply.
+  synchronized public long getLagMillis ()
+  {
+    if(outstanding != null && now() - pingSent > lag)
+      return now() - pingSent;
+    return lag;
+  }
+
+  // Counts of the recent round trips falling in each bucket
+  synchronized public int[] getHistogram ()
+  {
+    int[] counts = new int[BUCKET_LIMITS.length + 1];
+    for(int i=0;i<sampleCount;i++)
+    {
+      int b = 0;
+      while(b < BUCKET_LIMITS.length && samples[i] >= BUCKET_LIMITS[b])
+        b++;
+      counts[b]++;
+    }
+    return counts;
+  }
+
+  // eg. "<50ms" or ">=5000ms"
+  public static String getBucketName ( int bucket )
+  {
+    if(bucket < BUCKET_LIMITS.length)
+      return "<" + BUCKET_LIMITS[bucket] + "ms";
+    return ">=" + BUCKET_LIMITS[BUCKET_LIMITS.length-1] + "ms";
+  }
+
+  synchronized public int getPingCount ()
+  {
+    return pingsSent;
+  }
+
+  synchronized public int getTimeoutCount ()
+  {
+    return timeouts;
+  }
+
+  synchronized public String toString ()
+  {
+    StringBuffer buf = new StringBuffer();
+    long l = getLagMillis();
+    buf.append("lag ").append(l < 0 ? "unknown" : l + "ms");
+    buf.append(", last ").append(sampleCount).append(" pings:");
+    int[] counts = getHistogram();
+    for(int i=0;i<counts.length;i++)
+      buf.append(' ').append(getBucketName(i)).append('=').append(counts[i]);
+    buf.append(", ").append(timeouts).append(" timeouts");
+    return buf.toString();
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package kpl.irc;
+
+// One mode being set or unset by a MODE line, as split up by
+// IrcModeTable
+public final class IrcModeChange
+{
+  private final boolean adding;
+  private final char mode;
+  private final int type;
+  private final IrcString param;
+
+  IrcModeChange ( boolean adding, char mode, int type, IrcString param )
+  {
+    this.adding = adding;
+    this.mode = mode;
+    this.type = type;
+    this.param = param;
+  }
+
+  public boolean isAdding ()
+  {
+    return adding;
+  }
+
+  public char getMode ()
+  {
+    return mode;
+  }
+
+  // One of IrcModeTable.PREFIX, LIST, SETTING, PARAM_WHEN_SET or FLAG
+  public int getType ()
+  {
+    return type;
+  }
+
+  // The nick for a PREFIX mode, the mask for a LIST mode and so on, or
+  // null if the mode takes no parameter this way round
+  public IrcString getParam ()
+  {
+    return param;
+  }
+
+  public String toString ()
+  {
+    return (adding ? "+" : "-") + mode + (param != null ? " " + param : "");
+  }
+}
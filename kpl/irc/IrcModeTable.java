@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package kpl.irc;
+import java.util.*;
+
+/**
+ * Which channel modes a server has and which of them take a parameter,
+ * from the PREFIX and CHANMODES tokens of RPL_ISUPPORT. PREFIX lists the
+ * modes a user can hold on a channel, highest rank first, along with
+ * the symbols shown for them in NAMES replies, eg. "(qaohv)~&@%+".
+ * CHANMODES splits the rest into four classes by how they take
+ * parameters, eg. "beI,k,l,imnpst". Tables never change once made, so
+ * one can be shared between threads and swapped for another when the
+ * server sends new tokens.
+ */
+public final class IrcModeTable
+{
+  // Mode types, see CHANMODES classes A to D
+  // A user's rank on the channel, eg. o for op. Always has a nick.
+  public static final int PREFIX = 0;
+  // Adds to or removes from a list, eg. b for bans. Always has a mask.
+  public static final int LIST = 1;
+  // A setting that always has a parameter, eg. k for the key
+  public static final int SETTING = 2;
+  // A setting with a parameter only when set, eg. l for the user limit
+  public static final int PARAM_WHEN_SET = 3;
+  // A plain on or off mode, eg. m for moderated
+  public static final int FLAG = 4;
+
+  // What servers assumed before RPL_ISUPPORT, as RFC 1459 describes
+  public static final IrcModeTable DEFAULT = new IrcModeTable("(ov)@+", "beI,k,l,imnpst");
+
+  private static final int CHARS = 128;
+
+  private final String prefixModes, prefixSymbols, chanModes;
+  // Indexed by mode character. Characters we have not been told about
+  // are taken to be flags, as there is no way of knowing better.
+  private final byte[] types;
+  // Rank of each prefix mode and symbol, 0 being the highest, or -1
+  private final byte[] modeRanks, symbolRanks;
+
+  private IrcModeTable ( String prefix, String chanModes )
+  {
+    types = new byte[CHARS];
+    Arrays.fill(types, (byte)FLAG);
+    modeRanks = new byte[CHARS];
+    symbolRanks = new byte[CHARS];
+    Arrays.fill(modeRanks, (byte)-1);
+    Arrays.fill(symbolRanks, (byte)-1);
+
+    // Class A to D in order; any further classes are not defined, so
+    // their modes are left as flags
+    String[] classes = chanModes.split(",", -1);
+    for(int c=0;c<classes.length && c<4;c++)
+    {
+      for(int i=0;i<classes[c].length();i++)
+      {
+        char m = classes[c].charAt(i);
+        if(m < CHARS)
+          types[m] = (byte)(LIST + c);
+      }
+    }
+
+    // eg. "(ov)@+". A malformed token leaves no prefix modes at all.
+    String modes = "", symbols = "";
+    int close = prefix.indexOf(')');
+    if(prefix.startsWith("(") && close != -1
+        && prefix.length() - close - 1 == close - 1)
+    {
+      modes = prefix.substring(1, close);
+      symbols = prefix.substring(close + 1);
+    }
+    // More ranks than fit in IrcChannelUser's bits are not worth having
+    if(modes.length() > 31)
+    {
+      modes = modes.substring(0, 31);
+      symbols = symbols.substring(0, 31);
+    }
+    for(int i=0;i<modes.length();i++)
+    {
+      char m = modes.charAt(i), s = symbols.charAt(i);
+      if(m < CHARS)
+      {
+        types[m] = PREFIX;
+        modeRanks[m] = (byte)i;
+      }
+      if(s < CHARS)
+        symbolRanks[s] = (byte)i;
+    }
+    prefixModes = modes;
+    prefixSymbols = symbols;
+    this.chanModes = chanModes;
+  }
+
+  // Either token may be null if the server did not send it
+  public static IrcModeTable forISupport ( String prefix, String chanModes )
+  {
+    if(prefix == null && chanModes == null)
+      return DEFAULT;
+    return new IrcModeTable(prefix != null ? prefix : "(ov)@+",
+        chanModes != null ? chanModes : "beI,k,l,imnpst");
+  }
+
+  public int getType ( char mode )
+  {
+    return mode < CHARS ? types[mode] : FLAG;
+  }
+
+  // The number of ranks, eg. 2 for "(ov)@+"
+  public int getPrefixCount ()
+  {
+    return prefixModes.length();
+  }
+
+  // Rank of a prefix mode, 0 for the highest, or -1 if it is not one
+  public int getModeRank ( char mode )
+  {
+    return mode < CHARS ? modeRanks[mode] : -1;
+  }
+
+  // Rank of a NAMES prefix symbol such as '@', or -1 if it is not one
+  public int getSymbolRank ( char symbol )
+  {
+    return symbol < CHARS ? symbolRanks[symbol] : -1;
+  }
+
+  public char getPrefixMode ( int rank )
+  {
+    return prefixModes.charAt(rank);
+  }
+
+  public char getPrefixSymbol ( int rank )
+  {
+    return prefixSymbols.charAt(rank);
+  }
+
+  // Split a MODE line's mode string and parameters (IrcStrings) into
+  // separate changes, in order. Changes missing their parameter are
+  // left out.
+  public IrcModeChange[] parse ( IrcString modeString, List args )
+  {
+    String s = modeString.toString();
+    IrcModeChange[] changes = new IrcModeChange[s.length()];
+    int n = 0, arg = 0;
+    boolean adding = true;
+    for(int i=0;i<s.length();i++)
+    {
+      char m = s.charAt(i);
+      if(m == '+')
+      {
+        adding = true;
+        continue;
+      }
+      if(m == '-')
+      {
+        adding = false;
+        continue;
+      }
+      int type = getType(m);
+      boolean hasParam = type == PREFIX || type == LIST || type == SETTING
+        || (type == PARAM_WHEN_SET && adding);
+      IrcString param = null;
+      if(hasParam)
+      {
+        // eg. "MODE #chan +b" asks for the ban list rather than
+        // changing anything
+        if(arg >= args.size())
+          continue;
+        param = (IrcString)args.get(arg++);
+      }
+      changes[n++] = new IrcModeChange(adding, m, type, param);
+    }
+    if(n == changes.length)
+      return changes;
+    IrcModeChange[] out = new IrcModeChange[n];
+    System.arraycopy(changes, 0, out, 0, n);
+    return out;
+  }
+
+  public String toString ()
+  {
+    return "PREFIX=(" + prefixModes + ")" + prefixSymbols + " CHANMODES=" + chanModes;
+  }
+}
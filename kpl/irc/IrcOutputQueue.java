@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.*;
+
+/**
+ * Holds outgoing commands until the server will accept them without
+ * disconnecting us for excess flood. A token bucket limits the sustained
+ * rate to one line per interval, allowing bursts of up to burst lines
+ * after a quiet spell. Commands are sent in priority order: urgent ones
+ * (PONG, QUIT and registration) go straight out, then interactive ones (PRIVMSG etc.),
+ * then bulk ones (JOIN, WHO, MODE...).
+ */
+public class IrcOutputQueue
+{
+  public static final int URGENT = 0;
+  public static final int INTERACTIVE = 1;
+  public static final int BULK = 2;
+  private static final int NUM_CLASSES = 3;
+
+  private static class Entry
+  {
+    final IrcCommand command;
+    final long queuedAt;
+
+    Entry ( IrcCommand command, long queuedAt )
+    {
+      this.command = command;
+      this.queuedAt = queuedAt;
+    }
+  }
+
+  // One FIFO of Entries per priority class
+  private LinkedList[] queues;
+
+  // Token bucket. An interval of zero turns flood control off.
+  private long intervalNanos;
+  private int burst;
+  private double tokens;
+  private long lastRefill;
+
+  private int depth, maxDepth;
+  private long sent, totalWaitNanos, maxWaitNanos;
+  private IrcStats stats;
+
+  public IrcOutputQueue ( int intervalMillis, int burst )
+  {
+    queues = new LinkedList[NUM_CLASSES];
+    for(int i=0;i<NUM_CLASSES;i++)
+    {
+      queues[i] = new LinkedList();
+    }
+    setRate(intervalMillis, burst);
+  }
+
+  synchronized public void setRate ( int intervalMillis, int burst )
+  {
+    this.intervalNanos = intervalMillis * 1000000L;
+    this.burst = Math.max(burst, 1);
+    tokens = this.burst;
+    lastRefill = System.nanoTime();
+  }
+
+  void setStats ( IrcStats s )
+  {
+    stats = s;
+  }
+
+  // Works out which priority class a command belongs to
+  static int classify ( IrcCommand c )
+  {
+    // Compares the raw bytes, ignoring ASCII case, so the locale does not
+    // matter and nothing is allocated.
+    // PING too, so that queueing does not show up as lag, and CAP and
+    // USER which only happen while registering
+    if(c.commandEquals("PONG") || c.commandEquals("PING") || c.commandEquals("QUIT")
+        || c.commandEquals("CAP") || c.commandEquals("USER"))
+      return URGENT;
+    if(c.commandEquals("JOIN") || c.commandEquals("WHO") || c.commandEquals("MODE")
+        || c.commandEquals("NAMES") || c.commandEquals("LIST"))
+      return BULK;
+    return INTERACTIVE;
+  }
+
+  synchronized void add ( IrcCommand c, int priority )
+  {
+    queues[priority].addLast(new Entry(c, System.nanoTime()));
+    depth++;
+    if(depth > maxDepth)
+      maxDepth = depth;
+  }
+
+  private void refill ( long now )
+  {
+    if(intervalNanos == 0)
+    {
+      tokens = burst;
+      return;
+    }
+    tokens += (double)(now - lastRefill) / intervalNanos;
+    if(tokens > burst)
+      tokens = burst;
+    lastRefill = now;
+  }
+
+  // Returns the next command that may be sent now, or null if the queue
+  // is empty or we have to wait
+  synchronized IrcCommand poll ()
+  {
+    long now = System.nanoTime();
+    refill(now);
+
+    for(int i=0;i<NUM_CLASSES;i++)
+    {
+      if(queues[i].isEmpty())
+        continue;
+      // Urgent commands are never held back, but still use up a token
+      // if there is one so the server sees the same average rate.
+      if(i != URGENT && tokens < 1)
+        return null;
+      tokens = Math.max(tokens - 1, 0);
+
+      Entry e = (Entry)queues[i].removeFirst();
+      depth--;
+      long wait = now - e.queuedAt;
+      sent++;
+      totalWaitNanos += wait;
+      if(wait > maxWaitNanos)
+        maxWaitNanos = wait;
+      if(stats != null)
+        stats.waited(wait);
+      return e.command;
+    }
+    return null;
+  }
+
+  // Milliseconds until poll() will return something, or -1 if the
+  // queue is empty
+  synchronized long millisUntilNext ()
+  {
+    if(depth == 0)
+      return -1;
+    refill(System.nanoTime());
+    if(tokens >= 1)
+      return 0;
+    return (long)Math.ceil((1 - tokens) * intervalNanos / 1000000.0);
+  }
+
+  synchronized public int getDepth ()
+  {
+    return depth;
+  }
+
+  synchronized public int getMaxDepth ()
+  {
+    return maxDepth;
+  }
+
+  synchronized public long getSentCount ()
+  {
+    return sent;
+  }
+
+  synchronized public double getAverageWaitMillis ()
+  {
+    if(sent == 0)
+      return 0;
+    return totalWaitNanos / 1000000.0 / sent;
+  }
+
+  synchronized public double getMaxWaitMillis ()
+  {
+    return maxWaitNanos / 1000000.0;
+  }
+
+  public String toString ()
+  {
+    return "queued " + getDepth() + " (max " + getMaxDepth() + "), sent " + getSentCount()
+      + ", wait avg " + Math.round(getAverageWaitMillis()) + "ms max "
+      + Math.round(getMaxWaitMillis()) + "ms";
+  }
+}
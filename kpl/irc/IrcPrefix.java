@@ -20,10 +20,13 @@ package kpl.irc;
 import java.util.*;
 import java.lang.*;
 
+// Immutable, so the same instance can be shared between every line
+// with the same prefix (see IrcPrefixCache) and handed out without
+// copying.
 public class IrcPrefix
 {
-  private IrcString serverName;
-  private IrcString nick, user, host;
+  private final IrcString serverName;
+  private final IrcString nick, user, host;
 
   public String toString()
   {
@@ -42,25 +45,30 @@ public class IrcPrefix
   
   public IrcString getServerName ()
   {
-    return new IrcString(serverName);
+    return serverName;
   }
 
   public IrcString getNick ()
   {
-    return new IrcString(nick);
+    return nick;
   }
 
   public IrcString getUser ()
   {
-    return new IrcString(user);
+    return user;
   }
  
   public IrcString getHost ()
   {
-    return new IrcString(host);
+    return host;
   }
   
   IrcPrefix ( StringBuffer str )
+  {
+    this(str, IrcCaseMapping.RFC1459);
+  }
+  
+  IrcPrefix ( StringBuffer str, IrcCaseMapping mapping )
   {
     StringBuffer n,u,h;
 
@@ -111,17 +119,19 @@ public class IrcPrefix
       {
         throw new RuntimeException("Zero length prefix given");
       }
-      serverName = new IrcString(n);
-      nick = user = host = null;
+      serverName = new IrcString(n.toString(), mapping);
+      nick = null;
+      user = null;
+      host = null;
     } else
     {
       if(h.length() == 0 || u.length() == 0 || n.length() == 0)
       {
         throw new RuntimeException("Zero length component(s) in prefix");
       }
-      nick = new IrcString(n);
-      user = new IrcString(u);
-      host = new IrcString(h);
+      nick = new IrcString(n.toString(), mapping);
+      user = new IrcString(u.toString(), mapping);
+      host = new IrcString(h.toString(), mapping);
       serverName = null;
     }
   }
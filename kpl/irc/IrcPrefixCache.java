@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Interns IrcPrefixes by the raw bytes of the prefix, so the few
+ * thousand users we see again and again share one IrcPrefix each rather
+ * than getting a new one (and six strings) per line.
+ *
+ * The cache is a fixed size, four way set associative table. A lookup
+ * that hits allocates nothing and takes no lock; entries are immutable,
+ * so threads racing to fill a slot at worst make a prefix twice. Hits
+ * and misses are counted per thread, as in IrcStats, so lookups from
+ * different threads do not contend on shared counters.
+ */
+public class IrcPrefixCache
+{
+  private static final int WAYS = 4;
+
+  private static final class Entry
+  {
+    final byte[] key;
+    final int hash;
+    final IrcCaseMapping mapping;
+    // What the key was decoded with, as the same bytes may read
+    // differently for a target with its own charset
+    final Charset charset;
+    final IrcPrefix prefix;
+
+    Entry ( byte[] key, int hash, IrcCaseMapping mapping, Charset charset, IrcPrefix prefix )
+    {
+      this.key = key;
+      this.hash = hash;
+      this.mapping = mapping;
+      this.charset = charset;
+      this.prefix = prefix;
+    }
+  }
+
+  // Layout of a cell
+  private static final int HITS = 0;
+  private static final int MISSES = 1;
+  private static final int SAVED_BYTES = 2;
+  private static final int CELL_SIZE = 3;
+
+  private final Entry[] entries;
+  private final int setMask;
+  // Cells of live threads, and the totals of threads that have gone
+  private final List cells;
+  private final List owners;
+  private final long[] retired;
+  private final ThreadLocal local = new ThreadLocal()
+    {
+      protected Object initialValue ()
+      {
+        long[] cell = new long[CELL_SIZE];
+        synchronized(cells)
+        {
+          retire();
+          cells.add(cell);
+          owners.add(Thread.currentThread());
+        }
+        return cell;
+      }
+    };
+
+  // capacity is rounded up to a power of two
+  public IrcPrefixCache ( int capacity )
+  {
+    int sets = 1;
+    while(sets * WAYS < capacity)
+      sets *= 2;
+    entries = new Entry[sets * WAYS];
+    setMask = sets - 1;
+    cells = new ArrayList();
+    owners = new ArrayList();
+    retired = new long[CELL_SIZE];
+  }
+
+  public IrcPrefixCache ()
+  {
+    this(4096);
+  }
+
+  // Fold the cells of threads that have finished into retired. Must hold
+  // the cells lock.
+  private void retire ()
+  {
+    for(int i=cells.size()-1;i>=0;i--)
+    {
+      if(((Thread)owners.get(i)).isAlive())
+        continue;
+      long[] cell = (long[])cells.remove(i);
+      owners.remove(i);
+      for(int j=0;j<CELL_SIZE;j++)
+        retired[j] += cell[j];
+    }
+  }
+
+  // Adds up counter i over every thread. Cells are read without locking,
+  // so this may be a lookup or so out while lookups are going on.
+  private long total ( int i )
+  {
+    synchronized(cells)
+    {
+      long t = retired[i];
+      for(int j=0;j<cells.size();j++)
+        t += ((long[])cells.get(j))[i];
+      return t;
+    }
+  }
+
+  private static int hash ( byte[] b, int start, int end )
+  {
+    int h = 0;
+    for(int i=start;i<end;i++)
+    {
+      h = h * 31 + b[i];
+    }
+    // Prefixes often differ in just one character, so mix the bits well
+    // before the low ones are used to pick a set
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean matches ( Entry e, byte[] b, int start, int end, int h,
+      IrcCaseMapping mapping, Charset charset )
+  {
+    if(e == null || e.hash != h || e.mapping != mapping || e.charset != charset
+        || e.key.length != end - start)
+      return false;
+    for(int i=0;i<e.key.length;i++)
+    {
+      if(e.key[i] != b[start+i])
+        return false;
+    }
+    return true;
+  }
+
+  // Roughly what one IrcPrefix costs: the object itself, three IrcStrings
+  // and their Strings, and the characters of both the original and the
+  // folded forms
+  private static long approximateSize ( int len )
+  {
+    return 200 + 4 * len;
+  }
+
+  // Returns the IrcPrefix for bytes [start, end) of b, making it if it is
+  // not already cached. charset is the line's, as returned by
+  // IrcCharsets.charsetFor, and is null only if charsets is.
+  IrcPrefix get ( byte[] b, int start, int end, IrcCaseMapping mapping,
+      IrcCharsets charsets, Charset charset )
+  {
+    int h = hash(b, start, end);
+    int set = (h & setMask) * WAYS;
+    long[] cell = (long[])local.get();
+
+    for(int i=0;i<WAYS;i++)
+    {
+      Entry e = entries[set + i];
+      if(matches(e, b, start, end, h, mapping, charset))
+      {
+        cell[HITS]++;
+        cell[SAVED_BYTES] += approximateSize(end - start);
+        return e.prefix;
+      }
+    }
+
+    long missCount = ++cell[MISSES];
+    byte[] key = new byte[end - start];
+    System.arraycopy(b, start, key, 0, key.length);
+    String text = charsets != null ? charsets.decode(key, 0, key.length, charset) : new String(key);
+    IrcPrefix prefix = new IrcPrefix(new StringBuffer(text), mapping);
+
+    // Pick a victim within the set; cycling on the miss count spreads
+    // evictions well enough without keeping any per-set state
+    entries[set + (int)(missCount % WAYS)] = new Entry(key, h, mapping, charset, prefix);
+    return prefix;
+  }
+
+  public long getHits ()
+  {
+    return total(HITS);
+  }
+
+  public long getMisses ()
+  {
+    return total(MISSES);
+  }
+
+  public double getHitRate ()
+  {
+    long h = getHits();
+    long total = h + getMisses();
+    return total == 0 ? 0 : (double)h / total;
+  }
+
+  // An estimate of the memory that would have been allocated without
+  // the cache
+  public long getSavedBytes ()
+  {
+    return total(SAVED_BYTES);
+  }
+
+  public String toString ()
+  {
+    return "hits " + getHits() + ", misses " + getMisses() + " ("
+      + Math.round(getHitRate() * 100) + "% hit rate), about "
+      + getSavedBytes() / 1024 + "KB saved";
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Multiplexes any number of IrcConnections over a small, fixed set of
+ * selector threads. Connections given to a reactor with
+ * IrcConnection.setReactor have their listeners called on one of these
+ * threads, so listeners must not block.
+ */
+public class IrcReactor
+{
+  private Loop[] loops;
+  private int nextLoop;
+
+  // A selector and the thread that drives it
+  class Loop implements Runnable
+  {
+    final Selector selector;
+    final Thread thread;
+    // Tasks to be run on the selector thread
+    private LinkedList tasks;
+    private boolean running;
+
+    Loop ( int n ) throws IOException
+    {
+      selector = Selector.open();
+      tasks = new LinkedList();
+      running = true;
+      thread = new Thread(this, "IrcReactor-" + n);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    boolean inLoop ()
+    {
+      return Thread.currentThread() == thread;
+    }
+
+    // Runs r on the selector thread. If it throws, only t is closed.
+    void execute ( SelectorTransport t, Runnable r )
+    {
+      synchronized(tasks)
+      {
+        tasks.add(new Task(t, r));
+      }
+      selector.wakeup();
+    }
+
+    void stop ()
+    {
+      running = false;
+      selector.wakeup();
+    }
+
+    private void runTasks ()
+    {
+      while(true)
+      {
+        Task task;
+        synchronized(tasks)
+        {
+          if(tasks.isEmpty())
+            return;
+          task = (Task)tasks.removeFirst();
+        }
+        try
+        {
+          task.r.run();
+        } catch ( RuntimeException e )
+        {
+          // Other connections share this thread, so only drop this one
+          task.transport.close(e);
+        }
+      }
+    }
+
+    // The selector can't be used any more, so neither can any of the
+    // transports on it. Each is closed with the reason, which their
+    // connections report as usual.
+    private void fail ( IOException e )
+    {
+      running = false;
+      Iterator it = selector.keys().iterator();
+      while(it.hasNext())
+        ((SelectorTransport)((SelectionKey)it.next()).attachment()).close(e);
+      synchronized(tasks)
+      {
+        it = tasks.iterator();
+        while(it.hasNext())
+          ((Task)it.next()).transport.close(e);
+        tasks.clear();
+      }
+    }
+
+    public void run ()
+    {
+      while(running)
+      {
+        try
+        {
+          selector.select();
+        } catch ( IOException e )
+        {
+          fail(e);
+          break;
+        }
+        runTasks();
+        
+        Iterator it = selector.selectedKeys().iterator();
+        while(it.hasNext())
+        {
+          SelectionKey key = (SelectionKey)it.next();
+          it.remove();
+          SelectorTransport t = (SelectorTransport)key.attachment();
+          t.onReady(key);
+        }
+      }
+
+      try
+      {
+        selector.close();
+      } catch ( IOException e ) {}
+    }
+  }
+
+  private static class Task
+  {
+    final SelectorTransport transport;
+    final Runnable r;
+
+    Task ( SelectorTransport transport, Runnable r )
+    {
+      this.transport = transport;
+      this.r = r;
+    }
+  }
+
+  public IrcReactor ( int threads ) throws IOException
+  {
+    if(threads < 1)
+      throw new IllegalArgumentException("Need at least one selector thread");
+    loops = new Loop[threads];
+    for(int i=0;i<threads;i++)
+    {
+      loops[i] = new Loop(i);
+    }
+    nextLoop = 0;
+  }
+
+  public IrcReactor () throws IOException
+  {
+    this(1);
+  }
+
+  // Spread connections round robin over the selector threads
+  synchronized Loop nextLoop ()
+  {
+    Loop l = loops[nextLoop];
+    nextLoop = (nextLoop + 1) % loops.length;
+    return l;
+  }
+
+  // Stops the selector threads. Any connections still open are dropped
+  // without being told.
+  public void shutDown ()
+  {
+    for(int i=0;i<loops.length;i++)
+    {
+      loops[i].stop();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Writes every line an IrcConnection reads to a capture file, for
+ * IrcReplay to play back later. The format is the magic "KPIRCAP1"
+ * followed by one record per line: the milliseconds since the previous
+ * line and the line's length, both as varints, then the raw bytes of the
+ * line without its CRLF. Files named *.gz are compressed.
+ */
+public class IrcRecorder
+{
+  static final byte[] MAGIC = { 'K', 'P', 'I', 'R', 'C', 'A', 'P', '1' };
+
+  private final String fileName;
+  private OutputStream out;
+  private long lastMillis;
+  private long lines, bytes;
+  private IOException error;
+
+  public IrcRecorder ( String fileName ) throws IOException
+  {
+    this.fileName = fileName;
+    OutputStream o = new FileOutputStream(fileName);
+    if(fileName.endsWith(".gz"))
+      o = new GZIPOutputStream(o);
+    out = new BufferedOutputStream(o, 65536);
+    out.write(MAGIC);
+    lastMillis = System.currentTimeMillis();
+  }
+
+  static void writeVarint ( OutputStream o, long v ) throws IOException
+  {
+    while((v & ~0x7FL) != 0)
+    {
+      o.write((int)((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    o.write((int)v);
+  }
+
+  // Called by the connection for each line read. A write error stops the
+  // recording rather than the connection; see getError().
+  synchronized void record ( byte[] b, int off, int len )
+  {
+    if(out == null)
+      return;
+    long now = System.currentTimeMillis();
+    try
+    {
+      writeVarint(out, Math.max(now - lastMillis, 0));
+      writeVarint(out, len);
+      out.write(b, off, len);
+    } catch ( IOException e )
+    {
+      error = e;
+      closeQuietly();
+      return;
+    }
+    lastMillis = now;
+    lines++;
+    bytes += len;
+  }
+
+  private void closeQuietly ()
+  {
+    try
+    {
+      out.close();
+    } catch ( IOException e ) {}
+    out = null;
+  }
+
+  synchronized public void close () throws IOException
+  {
+    if(out == null)
+      return;
+    OutputStream o = out;
+    out = null;
+    o.close();
+  }
+
+  synchronized public boolean isRecording ()
+  {
+    return out != null;
+  }
+
+  // What stopped the recording early, if anything did
+  synchronized public IOException getError ()
+  {
+    return error;
+  }
+
+  synchronized public String toString ()
+  {
+    return fileName + ": " + lines + " lines, " + bytes + " bytes"
+      + (error != null ? ", stopped by " + error : "")
+      + (out == null && error == null ? ", closed" : "");
+  }
+}
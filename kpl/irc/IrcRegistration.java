@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.util.*;
+
+/**
+ * Gets a connection registered in as few round trips as possible.
+ * CAP LS, NICK and USER go out together as soon as the socket is up.
+ * Servers with capability negotiation hold registration until CAP END,
+ * so the capabilities we want are asked for in one CAP REQ and CAP END
+ * follows the reply; servers without it just register us. If the nick is
+ * taken, alternates are tried without waiting to be asked. Once those
+ * run out, registration waits for the user to send a nick, see
+ * isWaitingForNick().
+ */
+public class IrcRegistration extends IrcEventAdapter
+{
+  public static final int DISCONNECTED = 0;
+  public static final int NEGOTIATING = 1;
+  public static final int REGISTERING = 2;
+  public static final int REGISTERED = 3;
+  private static final int MAX_GENERATED_NICKS = 5;
+
+  private int state;
+  // Capabilities we can make use of, in the order they are requested
+  private final List wanted;
+  private final Set offered;
+  private final Set enabled;
+  private List alternateNicks;
+  private int nickAttempt;
+  private boolean outOfNicks;
+  private IrcString tryingNick;
+  private long connectedAt, registrationMillis;
+
+  IrcRegistration ( IrcConnection conn )
+  {
+    super(conn);
+    state = DISCONNECTED;
+    wanted = new ArrayList();
+    offered = new HashSet();
+    enabled = new HashSet();
+    alternateNicks = new ArrayList();
+    registrationMillis = -1;
+  }
+
+  synchronized void addCapability ( String cap )
+  {
+    if(!wanted.contains(cap))
+      wanted.add(cap);
+  }
+
+  synchronized void setAlternateNicks ( List nicks )
+  {
+    alternateNicks = new ArrayList(nicks);
+  }
+
+  synchronized public int getState ()
+  {
+    return state;
+  }
+
+  synchronized public boolean hasCapability ( String cap )
+  {
+    return enabled.contains(cap);
+  }
+
+  // Time from the socket connecting to RPL_WELCOME, or -1
+  synchronized public long getRegistrationMillis ()
+  {
+    return registrationMillis;
+  }
+
+  // True once every fallback nick has been refused while registering,
+  // until registration succeeds. Only a nick from the user, eg. through
+  // IrcConnection.sendNick, can get us registered then.
+  synchronized public boolean isWaitingForNick ()
+  {
+    return outOfNicks;
+  }
+
+  // The nick we are registered with, or are trying to register with
+  synchronized IrcString getNick ()
+  {
+    return tryingNick;
+  }
+
+  synchronized void nickChanged ( IrcString nick )
+  {
+    tryingNick = nick;
+  }
+
+  public void onConnect ()
+  {
+    IrcString nick;
+    synchronized(this)
+    {
+      state = NEGOTIATING;
+      offered.clear();
+      enabled.clear();
+      nickAttempt = 0;
+      outOfNicks = false;
+      registrationMillis = -1;
+      connectedAt = System.nanoTime();
+      nick = tryingNick = conn.getPreferredNick();
+    }
+    conn.sendCommands(new String[] {
+        "CAP LS 302",
+        "NICK " + nick,
+        conn.makeUserCommand() });
+  }
+
+  public void onDisconnect ( Exception why, boolean reconnecting )
+  {
+    synchronized(this)
+    {
+      state = DISCONNECTED;
+    }
+  }
+
+  public void onWelcome ( IrcString yourNick, String msg )
+  {
+    synchronized(this)
+    {
+      state = REGISTERED;
+      outOfNicks = false;
+      tryingNick = yourNick;
+      registrationMillis = (System.nanoTime() - connectedAt) / 1000000;
+    }
+  }
+
+  public void onCommand ( IrcCommand c )
+  {
+    if(!c.commandEquals("CAP") || c.getArgCount() < 4)
+      return;
+    String sub = c.getArg(2).toString().toUpperCase();
+    String caps = c.getArg(c.getArgCount()-1).toString();
+
+    String reply = null;
+    synchronized(this)
+    {
+      if(sub.equals("LS"))
+      {
+        addCaps(offered, caps);
+        // "CAP * LS * :..." means more lines are coming
+        if(c.getArgCount() >= 5 && c.getArg(3).toString().equals("*"))
+          return;
+        reply = makeRequest();
+      } else if(sub.equals("ACK"))
+      {
+        addCaps(enabled, caps);
+        reply = "CAP END";
+      } else if(sub.equals("NAK"))
+      {
+        reply = "CAP END";
+      }
+      if(reply != null && reply.equals("CAP END"))
+      {
+        if(state != NEGOTIATING)
+          return;
+        state = REGISTERING;
+      }
+    }
+    if(reply != null)
+      conn.sendCommands(new String[] { reply });
+  }
+
+  // Must hold the lock
+  private String makeRequest ()
+  {
+    StringBuffer req = new StringBuffer();
+    for(int i=0;i<wanted.size();i++)
+    {
+      String cap = (String)wanted.get(i);
+      if(!offered.contains(cap))
+        continue;
+      if(req.length() > 0)
+        req.append(' ');
+      req.append(cap);
+    }
+    if(req.length() == 0)
+      return "CAP END";
+    return "CAP REQ :" + req;
+  }
+
+  private static void addCaps ( Set to, String caps )
+  {
+    StringTokenizer tok = new StringTokenizer(caps, " ");
+    while(tok.hasMoreTokens())
+    {
+      String cap = tok.nextToken();
+      // Drop values, eg. "sasl=PLAIN,EXTERNAL", and ACK's modifiers
+      int eq = cap.indexOf('=');
+      if(eq >= 0)
+        cap = cap.substring(0, eq);
+      if(cap.startsWith("-"))
+      {
+        to.remove(cap.substring(1));
+        continue;
+      }
+      to.add(cap);
+    }
+  }
+
+  public void onNick ( IrcPrefix who, IrcString nick )
+  {
+    synchronized(this)
+    {
+      if(tryingNick != null && who.getNick().equals(tryingNick))
+        tryingNick = nick;
+    }
+  }
+
+  public void onNumeric ( int numeric, IrcCommand c )
+  {
+    // ERR_ERRONEUSNICKNAME, ERR_NICKNAMEINUSE, ERR_UNAVAILRESOURCE
+    if(numeric != 432 && numeric != 433 && numeric != 437)
+      return;
+    IrcString next;
+    synchronized(this)
+    {
+      // Once registered it's up to the user to pick another nick
+      if(state == REGISTERED || state == DISCONNECTED)
+        return;
+      next = nextNick();
+      if(next == null)
+      {
+        outOfNicks = true;
+        return;
+      }
+      tryingNick = next;
+    }
+    conn.sendCommands(new String[] { "NICK " + next });
+  }
+
+  // Must hold the lock. The configured alternates first, then the
+  // preferred nick with '_' appended, then short enough for any server
+  // with random digits. Returns null once we have run out of ideas.
+  private IrcString nextNick ()
+  {
+    int n = nickAttempt++;
+    if(n < alternateNicks.size())
+      return new IrcString((String)alternateNicks.get(n));
+    n -= alternateNicks.size();
+    String base = conn.getPreferredNick().toString();
+    if(n < 2)
+      return new IrcString(base + "__".substring(0, n + 1));
+    if(n < MAX_GENERATED_NICKS)
+    {
+      // Nine characters is the lowest limit servers are allowed
+      String digits = "" + (100 + (int)(Math.random() * 900));
+      return new IrcString(truncate(base, 9 - digits.length()) + digits);
+    }
+    return null;
+  }
+
+  private static String truncate ( String s, int len )
+  {
+    return s.length() > len ? s.substring(0, len) : s;
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.lang.reflect.*;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * Plays a capture made by IrcRecorder into an IrcConnection in place of
+ * a server, see IrcConnection.replay(). Lines are fed in with their
+ * original spacing scaled by speed, or as fast as they can be handled if
+ * speed is 0, and the run is timed so that parser and model changes can
+ * be compared on real traffic. Time and allocation include the
+ * connection's asynchronous listeners, as the replay waits for them to
+ * catch up before finishing.
+ */
+public class IrcReplay
+{
+  private final String fileName;
+  private final double speed;
+  private long lines, bytes;
+  private long startNanos, elapsedNanos;
+  private long allocatedBytes;
+  private boolean started, finished;
+  private Exception error;
+
+  public IrcReplay ( String fileName, double speed )
+  {
+    this.fileName = fileName;
+    this.speed = speed;
+    allocatedBytes = -1;
+  }
+
+  public String getFileName ()
+  {
+    return fileName;
+  }
+
+  public double getSpeed ()
+  {
+    return speed;
+  }
+
+  synchronized void start ()
+  {
+    started = true;
+    startNanos = System.nanoTime();
+  }
+
+  synchronized void line ( int len )
+  {
+    lines++;
+    bytes += len;
+  }
+
+  synchronized void finish ( long allocated, Exception e )
+  {
+    if(started)
+      elapsedNanos = System.nanoTime() - startNanos;
+    allocatedBytes = allocated;
+    error = e;
+    finished = true;
+    notifyAll();
+  }
+
+  synchronized public void waitFinished () throws InterruptedException
+  {
+    while(!finished)
+      wait();
+  }
+
+  synchronized public boolean hasFinished ()
+  {
+    return finished;
+  }
+
+  synchronized public long getLineCount ()
+  {
+    return lines;
+  }
+
+  synchronized public long getByteCount ()
+  {
+    return bytes;
+  }
+
+  synchronized public double getElapsedMillis ()
+  {
+    return elapsedNanos / 1000000.0;
+  }
+
+  synchronized public double getLinesPerSecond ()
+  {
+    return elapsedNanos > 0 ? lines * 1e9 / elapsedNanos : 0;
+  }
+
+  // Bytes allocated by every thread during the replay, divided by the
+  // number of lines, or -1 if the JVM can not tell us
+  synchronized public long getAllocatedBytesPerLine ()
+  {
+    if(allocatedBytes < 0 || lines == 0)
+      return -1;
+    return allocatedBytes / lines;
+  }
+
+  // Why the replay stopped early, if it did
+  synchronized public Exception getError ()
+  {
+    return error;
+  }
+
+  synchronized public String toString ()
+  {
+    StringBuffer buf = new StringBuffer();
+    buf.append(lines).append(" lines (").append(bytes).append(" bytes) in ");
+    buf.append(Math.round(elapsedNanos / 1000000.0)).append("ms, ");
+    buf.append(Math.round(getLinesPerSecond())).append(" lines/s");
+    long perLine = getAllocatedBytesPerLine();
+    if(perLine >= 0)
+      buf.append(", ").append(perLine).append(" bytes allocated per line");
+    if(error != null)
+      buf.append(", stopped by ").append(error);
+    return buf.toString();
+  }
+
+  // Per-thread allocation counters are a HotSpot extension, so they are
+  // found by reflection rather than tying the build to it
+  private static Method allocatedBytesMethod;
+  private static boolean allocatedBytesLooked;
+
+  private static synchronized Method getAllocatedBytesMethod ()
+  {
+    if(!allocatedBytesLooked)
+    {
+      allocatedBytesLooked = true;
+      try
+      {
+        Class c = Class.forName("com.sun.management.ThreadMXBean");
+        if(c.isInstance(ManagementFactory.getThreadMXBean()))
+          allocatedBytesMethod = c.getMethod("getThreadAllocatedBytes", new Class[] { long[].class });
+      } catch ( Exception e ) {}
+    }
+    return allocatedBytesMethod;
+  }
+
+  // Thread id -> bytes allocated so far, or null if unavailable
+  static Map allocationSnapshot ()
+  {
+    Method m = getAllocatedBytesMethod();
+    if(m == null)
+      return null;
+    try
+    {
+      long[] ids = ManagementFactory.getThreadMXBean().getAllThreadIds();
+      long[] counts = (long[])m.invoke(ManagementFactory.getThreadMXBean(), new Object[] { ids });
+      Map snap = new HashMap();
+      for(int i=0;i<ids.length;i++)
+      {
+        if(counts[i] >= 0)
+          snap.put(Long.valueOf(ids[i]), Long.valueOf(counts[i]));
+      }
+      return snap;
+    } catch ( Exception e )
+    {
+      return null;
+    }
+  }
+
+  // Bytes allocated since the snapshot by threads still alive. Threads
+  // started since count from zero.
+  static long allocatedSince ( Map before )
+  {
+    Map after = allocationSnapshot();
+    if(before == null || after == null)
+      return -1;
+    long total = 0;
+    Iterator it = after.entrySet().iterator();
+    while(it.hasNext())
+    {
+      Map.Entry e = (Map.Entry)it.next();
+      Long was = (Long)before.get(e.getKey());
+      total += ((Long)e.getValue()).longValue() - (was != null ? was.longValue() : 0);
+    }
+    return total;
+  }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package kpl.irc;
+import java.util.*;
+
+/**
+ * Counts what a connection does: lines and bytes each way, lines per
+ * command, and how long parsing, dispatch, listeners and the output
+ * queue take. Each thread that records anything gets its own cell of
+ * counters, so recording is a ThreadLocal lookup and a few plain
+ * increments with no locking or contention. snapshot() adds the cells
+ * up; as the cells are read without locking, a snapshot taken while
+ * lines are arriving may be a line or so out.
+ */
+public class IrcStats
+{
+  // Commands counted by name. Numerics are counted by number, and any
+  // other command as "other".
+  private static final String[] VERBS = {
+    "PRIVMSG", "NOTICE", "JOIN", "PART", "QUIT", "NICK", "MODE", "KICK",
+    "TOPIC", "INVITE", "PING", "PONG", "CAP", "AWAY", "ACCOUNT", "CHGHOST",
+    "BATCH", "TAGMSG", "ERROR" };
+  private static final int NUMERIC_SLOT = VERBS.length;
+  private static final int OTHER_SLOT = NUMERIC_SLOT + 1;
+  // Kinds of event for listener time: commands as above, but with all
+  // numerics together, then the other event types
+  private static final int KINDS = OTHER_SLOT + 5;
+  private static final String[] OTHER_KINDS = { "CONNECT", "DISCONNECT", "LAG", "OVERLOAD" };
+
+  // Histogram bucket i counts times of at least 2^i and under 2^(i+1)
+  // nanoseconds, the last bucket everything longer
+  public static final int BUCKETS = 40;
+
+  // Layout of a cell
+  private static final int LINES_IN = 0;
+  private static final int BYTES_IN = 1;
+  private static final int LINES_OUT = 2;
+  private static final int BYTES_OUT = 3;
+  private static final int VERB_COUNTS = 4;
+  private static final int NUMERIC_COUNTS = VERB_COUNTS + VERBS.length;
+  private static final int OTHER_COUNT = NUMERIC_COUNTS + 1000;
+  private static final int PARSE = OTHER_COUNT + 1;
+  private static final int DISPATCH = PARSE + BUCKETS;
+  private static final int QUEUE_WAIT = DISPATCH + BUCKETS;
+  private static final int LISTENER_NANOS = QUEUE_WAIT + BUCKETS;
+  private static final int LISTENER_EVENTS = LISTENER_NANOS + KINDS;
+  private static final int CELL_SIZE = LISTENER_EVENTS + KINDS;
+
+  private static final IrcCommandTable verbTable = new IrcCommandTable();
+  static
+  {
+    for(int i=0;i<VERBS.length;i++)
+      verbTable.put(VERBS[i], Integer.valueOf(i));
+  }
+
+  private final IrcConnection conn;
+  private final long started;
+  // Cells of live threads, and the totals of threads that have gone
+  private final List cells;
+  private final List owners;
+  private final long[] retired;
+  private final ThreadLocal local = new ThreadLocal()
+    {
+      protected Object initialValue ()
+      {
+        long[] cell = new long[CELL_SIZE];
+        synchronized(cells)
+        {
+          retire();
+          cells.add(cell);
+          owners.add(Thread.currentThread());
+        }
+        return cell;
+      }
+    };
+
+  IrcStats ( IrcConnection conn )
+  {
+    this.conn = conn;
+    started = System.currentTimeMillis();
+    cells = new ArrayList();
+    owners = new ArrayList();
+    retired = new long[CELL_SIZE];
+  }
+
+  // Fold the cells of threads that have finished into retired, so
+  // reconnects and restarted listener threads do not pile up cells.
+  // Must hold the cells lock.
+  private void retire ()
+  {
+    for(int i=cells.size()-1;i>=0;i--)
+    {
+      if(((Thread)owners.get(i)).isAlive())
+        continue;
+      long[] cell = (long[])cells.remove(i);
+      owners.remove(i);
+      for(int j=0;j<CELL_SIZE;j++)
+        retired[j] += cell[j];
+    }
+  }
+
+  private long[] cell ()
+  {
+    return (long[])local.get();
+  }
+
+  private static int bucket ( long nanos )
+  {
+    if(nanos <= 0)
+      return 0;
+    int b = 63 - Long.numberOfLeadingZeros(nanos);
+    return b < BUCKETS ? b : BUCKETS - 1;
+  }
+
+  // The command's slot among VERBS, or NUMERIC_SLOT or OTHER_SLOT
+  static int slotOf ( IrcCommand c )
+  {
+    if(c.getNumeric() >= 0)
+      return NUMERIC_SLOT;
+    Integer slot = (Integer)verbTable.lookup(c);
+    return slot != null ? slot.intValue() : OTHER_SLOT;
+  }
+
+  // A line of len bytes, not counting the line ending, took nanos to
+  // parse
+  void parsed ( int len, long nanos )
+  {
+    long[] cell = cell();
+    cell[LINES_IN]++;
+    cell[BYTES_IN] += len + 2;
+    cell[PARSE + bucket(nanos)]++;
+  }
+
+  // The command has been handed to the synchronous listeners and queued
+  // for the asynchronous ones, which took nanos
+  void dispatched ( IrcCommand c, int slot, long nanos )
+  {
+    long[] cell = cell();
+    if(slot == NUMERIC_SLOT)
+      cell[NUMERIC_COUNTS + c.getNumeric()]++;
+    else if(slot == OTHER_SLOT)
+      cell[OTHER_COUNT]++;
+    else
+      cell[VERB_COUNTS + slot]++;
+    cell[DISPATCH + bucket(nanos)]++;
+  }
+
+  // A listener took nanos over an event
+  void delivered ( IrcEvent e, long nanos )
+  {
+    int kind;
+    if(e.type == IrcEvent.COMMAND)
+      kind = e.slot;
+    else if(e.type == IrcEvent.CONNECT)
+      kind = OTHER_SLOT + 1;
+    else if(e.type == IrcEvent.DISCONNECT)
+      kind = OTHER_SLOT + 2;
+    else if(e.type == IrcEvent.LAG)
+      kind = OTHER_SLOT + 3;
+    else
+      kind = OTHER_SLOT + 4;
+    long[] cell = cell();
+    cell[LISTENER_NANOS + kind] += nanos;
+    cell[LISTENER_EVENTS + kind]++;
+  }
+
+  // A command spent nanos in the output queue
+  void waited ( long nanos )
+  {
+    cell()[QUEUE_WAIT + bucket(nanos)]++;
+  }
+
+  // lines lines of bytes bytes in all went out in one write
+  void sent ( int lines, int bytes )
+  {
+    long[] cell = cell();
+    cell[LINES_OUT] += lines;
+    cell[BYTES_OUT] += bytes;
+  }
+
+  private static String kindName ( int kind )
+  {
+    if(kind < VERBS.length)
+      return VERBS[kind];
+    if(kind == NUMERIC_SLOT)
+      return "numerics";
+    if(kind == OTHER_SLOT)
+      return "other";
+    return OTHER_KINDS[kind - OTHER_SLOT - 1];
+  }
+
+  public Snapshot snapshot ()
+  {
+    long[] total = new long[CELL_SIZE];
+    synchronized(cells)
+    {
+      System.arraycopy(retired, 0, total, 0, CELL_SIZE);
+      for(int i=0;i<cells.size();i++)
+      {
+        long[] cell = (long[])cells.get(i);
+        for(int j=0;j<CELL_SIZE;j++)
+          total[j] += cell[j];
+      }
+    }
+    return new Snapshot(this, total);
+  }
+
+  // The lower bound of a histogram bucket
+  public static long getBucketNanos ( int bucket )
+  {
+    return 1L << bucket;
+  }
+
+  // eg. "1.5us" or "20ms"
+  static String formatNanos ( long nanos )
+  {
+    if(nanos < 1000)
+      return nanos + "ns";
+    if(nanos < 1000000)
+      return Math.round(nanos / 100.0) / 10.0 + "us";
+    if(nanos < 1000000000)
+      return Math.round(nanos / 100000.0) / 10.0 + "ms";
+    return Math.round(nanos / 100000000.0) / 10.0 + "s";
+  }
+
+  private static String formatBytes ( double bytes )
+  {
+    if(bytes < 10240)
+      return Math.round(bytes) + "B";
+    return Math.round(bytes / 1024) + "KB";
+  }
+
+  /**
+   * The counters at one moment, along with the state of the connection's
+   * queues, prefix cache and lag meter. Rates are worked out against an
+   * earlier snapshot, or from when counting started.
+   */
+  public static final class Snapshot
+  {
+    private final long millis, started;
+    private final long[] counts;
+    private final int inputDepth, inputHighWater, outputDepth, outputMaxDepth;
+    private final long skipped, prefixHits, prefixMisses, lagMillis;
+
+    Snapshot ( IrcStats stats, long[] counts )
+    {
+      this.millis = System.currentTimeMillis();
+      this.started = stats.started;
+      this.counts = counts;
+      IrcConnection conn = stats.conn;
+      IrcEventBus bus = conn.getEventBus();
+      inputDepth = bus.getDepth();
+      inputHighWater = bus.getHighWater();
+      skipped = bus.getSkippedCount();
+      IrcOutputQueue out = conn.getOutputQueue();
+      outputDepth = out != null ? out.getDepth() : 0;
+      outputMaxDepth = out != null ? out.getMaxDepth() : 0;
+      prefixHits = conn.getPrefixCache().getHits();
+      prefixMisses = conn.getPrefixCache().getMisses();
+      lagMillis = conn.getLagMeter().getLagMillis();
+    }
+
+    // When the snapshot was taken, as System.currentTimeMillis
+    public long getMillis () { return millis; }
+    public long getLinesIn () { return counts[LINES_IN]; }
+    public long getBytesIn () { return counts[BYTES_IN]; }
+    public long getLinesOut () { return counts[LINES_OUT]; }
+    public long getBytesOut () { return counts[BYTES_OUT]; }
+    // Events waiting for asynchronous listeners, and the most there
+    // have been, see IrcEventBus
+    public int getInputDepth () { return inputDepth; }
+    public int getInputHighWater () { return inputHighWater; }
+    public long getSkippedCount () { return skipped; }
+    public int getOutputDepth () { return outputDepth; }
+    public int getOutputMaxDepth () { return outputMaxDepth; }
+    public long getPrefixCacheHits () { return prefixHits; }
+    public long getPrefixCacheMisses () { return prefixMisses; }
+    // -1 before the first ping is answered
+    public long getLagMillis () { return lagMillis; }
+
+    // Lines read per command, eg. "PRIVMSG" or "353", busiest first
+    public Map getCommandCounts ()
+    {
+      List entries = new ArrayList();
+      for(int i=0;i<VERBS.length;i++)
+        addCount(entries, VERBS[i], counts[VERB_COUNTS + i]);
+      for(int i=0;i<1000;i++)
+        addCount(entries, (i < 100 ? (i < 10 ? "00" : "0") : "") + i, counts[NUMERIC_COUNTS + i]);
+      addCount(entries, "other", counts[OTHER_COUNT]);
+      return sortByCount(entries);
+    }
+
+    // Total time listeners spent on each kind of event, in nanoseconds,
+    // and how many they handled. Numerics are counted together.
+    public Map getListenerNanos ()
+    {
+      List entries = new ArrayList();
+      for(int i=0;i<KINDS;i++)
+        addCount(entries, kindName(i), counts[LISTENER_NANOS + i]);
+      return sortByCount(entries);
+    }
+
+    public Map getListenerEvents ()
+    {
+      List entries = new ArrayList();
+      for(int i=0;i<KINDS;i++)
+        addCount(entries, kindName(i), counts[LISTENER_EVENTS + i]);
+      return sortByCount(entries);
+    }
+
+    // Counts per bucket, see getBucketNanos
+    public long[] getParseHistogram () { return histogram(PARSE); }
+    public long[] getDispatchHistogram () { return histogram(DISPATCH); }
+    public long[] getQueueWaitHistogram () { return histogram(QUEUE_WAIT); }
+
+    private long[] histogram ( int offset )
+    {
+      long[] h = new long[BUCKETS];
+      System.arraycopy(counts, offset, h, 0, BUCKETS);
+      return h;
+    }
+
+    // Per second since the earlier snapshot, or since counting started
+    // if it is null
+    public double getLinesInPerSecond ( Snapshot since ) { return rate(since, LINES_IN); }
+    public double getBytesInPerSecond ( Snapshot since ) { return rate(since, BYTES_IN); }
+    public double getLinesOutPerSecond ( Snapshot since ) { return rate(since, LINES_OUT); }
+    public double getBytesOutPerSecond ( Snapshot since ) { return rate(since, BYTES_OUT); }
+
+    private double rate ( Snapshot since, int counter )
+    {
+      long from = since != null ? since.millis : started;
+      long before = since != null ? since.counts[counter] : 0;
+      if(millis <= from)
+        return 0;
+      return (counts[counter] - before) * 1000.0 / (millis - from);
+    }
+
+    // The lower bound of the bucket holding the given fraction of the
+    // samples, eg. 0.99 for the 99th percentile, or -1 if there are none
+    public static long percentileNanos ( long[] histogram, double fraction )
+    {
+      long total = 0;
+      for(int i=0;i<histogram.length;i++)
+        total += histogram[i];
+      if(total == 0)
+        return -1;
+      long wanted = (long)Math.ceil(total * fraction);
+      long seen = 0;
+      for(int i=0;i<histogram.length;i++)
+      {
+        seen += histogram[i];
+        if(seen >= wanted && histogram[i] > 0)
+          return getBucketNanos(i);
+      }
+      return getBucketNanos(histogram.length - 1);
+    }
+
+    // A few lines for people, with rates since the earlier snapshot
+    public String[] format ( Snapshot since )
+    {
+      List lines = new ArrayList();
+      lines.add("In: " + getLinesIn() + " lines, " + formatBytes(getBytesIn())
+          + " (" + Math.round(getLinesInPerSecond(since)) + " lines/s, "
+          + formatBytes(getBytesInPerSecond(since)) + "/s); out: " + getLinesOut()
+          + " lines, " + formatBytes(getBytesOut()) + " ("
+          + Math.round(getLinesOutPerSecond(since)) + " lines/s, "
+          + formatBytes(getBytesOutPerSecond(since)) + "/s)");
+      lines.add("Commands: " + top(getCommandCounts(), 10, false));
+      lines.add("Parse " + percentiles(getParseHistogram())
+          + "; dispatch " + percentiles(getDispatchHistogram())
+          + "; output queue wait " + percentiles(getQueueWaitHistogram()));
+      lines.add("Listener time: " + top(getListenerNanos(), 8, true));
+      lines.add("Input queue " + inputDepth + " (high water " + inputHighWater + ", "
+          + skipped + " skipped); output queue " + outputDepth + " (max "
+          + outputMaxDepth + "); prefix cache " + prefixHits + " hits, "
+          + prefixMisses + " misses; lag "
+          + (lagMillis < 0 ? "unknown" : lagMillis + "ms"));
+      return (String[])lines.toArray(new String[lines.size()]);
+    }
+
+    private static String percentiles ( long[] h )
+    {
+      if(percentileNanos(h, 1) < 0)
+        return "none";
+      return "p50 " + formatNanos(percentileNanos(h, 0.5))
+        + " p99 " + formatNanos(percentileNanos(h, 0.99))
+        + " max " + formatNanos(percentileNanos(h, 1));
+    }
+
+    private static String top ( Map m, int n, boolean nanos )
+    {
+      StringBuffer out = new StringBuffer();
+      Iterator it = m.entrySet().iterator();
+      for(int i=0;i<n && it.hasNext();i++)
+      {
+        Map.Entry e = (Map.Entry)it.next();
+        if(i > 0)
+          out.append(", ");
+        long v = ((Long)e.getValue()).longValue();
+        out.append(e.getKey()).append(' ').append(nanos ? formatNanos(v) : String.valueOf(v));
+      }
+      if(out.length() == 0)
+        out.append("none");
+      return out.toString();
+    }
+
+    private static void addCount ( List entries, String name, long count )
+    {
+      if(count > 0)
+        entries.add(new Object[] { name, Long.valueOf(count) });
+    }
+
+    private static Map sortByCount ( List entries )
+    {
+      Collections.sort(entries, new Comparator()
+        {
+          public int compare ( Object a, Object b )
+          {
+            long x = ((Long)((Object[])a)[1]).longValue();
+            long y = ((Long)((Object[])b)[1]).longValue();
+            return x > y ? -1 : (x < y ? 1 : 0);
+          }
+        });
+      Map m = new LinkedHashMap();
+      for(int i=0;i<entries.size();i++)
+      {
+        Object[] e = (Object[])entries.get(i);
+        m.put(e[0], e[1]);
+      }
+      return m;
+    }
+
+    public String toString ()
+    {
+      String[] lines = format(null);
+      StringBuffer out = new StringBuffer();
+      for(int i=0;i<lines.length;i++)
+      {
+        if(i > 0)
+          out.append('\n');
+        out.append(lines[i]);
+      }
+      return out.toString();
+    }
+  }
+}
@@ -18,68 +18,89 @@
 
 package kpl.irc;
 import java.lang.*;
-import java.lang.reflect.*;
 
 // For some reason, String is final
+//
+// The case folded form is worked out once, when the string is made, so
+// comparisons and hashing never have to allocate. This makes IrcStrings
+// usable as HashMap keys as well as TreeMap keys.
 public class IrcString implements Comparable
 {
-  public String s;
+  public final String s;
+  private final String folded;
+  private final int hash;
+  private final IrcCaseMapping mapping;
 
-  public IrcString ( String s )
+  public IrcString ( String s, IrcCaseMapping mapping )
   {
     this.s = s;
+    this.mapping = mapping;
+    folded = mapping.fold(s);
+    hash = folded.hashCode();
+  }
+
+  public IrcString ( String s )
+  {
+    this(s, IrcCaseMapping.RFC1459);
   }
   
   public IrcString ( StringBuffer b )
   {
-    s = new String ( b );
+    this(new String(b));
   }
   
   public IrcString ( IrcString o )
   {
     this.s = o.s;
+    this.mapping = o.mapping;
+    this.folded = o.folded;
+    this.hash = o.hash;
   }
   
   public int length ()
   {
     return s.length();
   }
-  
-  private String normalize ()
+
+  public IrcCaseMapping getCaseMapping ()
   {
-    char arr[] = s.toLowerCase().toCharArray();
+    return mapping;
+  }
 
-    for(int i=0;i<Array.getLength(arr);i++)
-    {
-      if(arr[i] == '[')
-        arr[i] = '{';
-      else if(arr[i] == ']')
-        arr[i] = '}';
-      else if(arr[i] == '\\')
-        arr[i] = '|';
-    }
+  // The form used for comparisons
+  public String getFolded ()
+  {
+    return folded;
+  }
 
-    return new String ( arr );
+  private String foldedFormOf ( Object o )
+  {
+    if(o instanceof IrcString)
+      return ((IrcString) o).folded;
+    return mapping.fold((String)o);
   }
   
   public boolean equals ( Object o )
   {
-    if(!(o instanceof IrcString) && !(o instanceof String))
+    if(o == this)
     {
-      return false;
+      return true;
     }
-
-    String a = normalize();
-    String b;
     if(o instanceof IrcString)
     {
-      b = ((IrcString) o).normalize();
-    } else
+      IrcString other = (IrcString)o;
+      return hash == other.hash && folded.equals(other.folded);
+    }
+    if(!(o instanceof String))
     {
-      b = (new IrcString((String)o)).normalize();
+      return false;
     }
+    return folded.equals(foldedFormOf(o));
+  }
 
-    return a.equals(b);
+  public int hashCode ()
+  {
+    return hash;
   }
 
   public int compareTo ( Object o )
@@ -89,21 +110,11 @@ public class IrcString implements Comparable
       throw new ClassCastException();
     }
 
-    String a = normalize();
-    String b;
-    if(o instanceof IrcString)
-    {
-      b = ((IrcString) o).normalize();
-    } else
-    {
-      b = (new IrcString((String)o)).normalize();
-    }
-    return a.compareTo(b);
+    return folded.compareTo(foldedFormOf(o));
   }
 
   public String toString ()
   {
-    return new String(s);
+    return s;
   }
 }
-
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.security.*;
+import java.security.cert.*;
+import javax.net.ssl.*;
+
+/**
+ * TLS settings for one or more connections. The SSLContext is kept for
+ * as long as the settings do not change, and with it JSSE's client
+ * session cache, so reconnecting to the same host and port resumes the
+ * previous session rather than doing a full handshake. Keep one of these
+ * across reconnects to benefit.
+ */
+public class IrcTls
+{
+  private String keyStorePath, keyStorePassword;
+  private String trustStorePath, trustStorePassword;
+  private boolean verifyCertificates;
+  private SSLContext context;
+
+  private long lastHandshakeNanos;
+  private boolean lastResumed;
+  private int handshakes, resumed;
+
+  public IrcTls ()
+  {
+    verifyCertificates = true;
+  }
+
+  // Present the first key in the given keystore (JKS or PKCS12) to the
+  // server, eg. for SASL EXTERNAL or CertFP. Pass null to stop.
+  synchronized public void setClientCertificate ( String path, String password )
+  {
+    keyStorePath = path;
+    keyStorePassword = password;
+    context = null;
+  }
+
+  // Trust the certificates in the given keystore instead of the JVM's
+  // default CAs. Pass null to go back to the defaults.
+  synchronized public void setTrustStore ( String path, String password )
+  {
+    trustStorePath = path;
+    trustStorePassword = password;
+    context = null;
+  }
+
+  // Setting this false accepts any certificate the server presents,
+  // which many self-signed IRC servers need
+  synchronized public void setVerifyCertificates ( boolean verify )
+  {
+    verifyCertificates = verify;
+    context = null;
+  }
+
+  private static KeyStore loadKeyStore ( String path, String password ) throws GeneralSecurityException, IOException
+  {
+    KeyStore ks = KeyStore.getInstance(path.toLowerCase().endsWith(".p12")
+        || path.toLowerCase().endsWith(".pfx") ? "PKCS12" : "JKS");
+    char[] pw = password != null ? password.toCharArray() : null;
+    InputStream in = new FileInputStream(path);
+    try
+    {
+      ks.load(in, pw);
+    } finally
+    {
+      in.close();
+    }
+    return ks;
+  }
+
+  private SSLContext getContext () throws GeneralSecurityException, IOException
+  {
+    if(context != null)
+      return context;
+
+    KeyManager[] keyManagers = null;
+    if(keyStorePath != null)
+    {
+      KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      kmf.init(loadKeyStore(keyStorePath, keyStorePassword),
+          keyStorePassword != null ? keyStorePassword.toCharArray() : null);
+      keyManagers = kmf.getKeyManagers();
+    }
+
+    TrustManager[] trustManagers = null;
+    if(!verifyCertificates)
+    {
+      trustManagers = new TrustManager[] { new X509TrustManager()
+        {
+          public void checkClientTrusted ( X509Certificate[] chain, String authType ) {}
+          public void checkServerTrusted ( X509Certificate[] chain, String authType ) {}
+          public X509Certificate[] getAcceptedIssuers () { return new X509Certificate[0]; }
+        }};
+    } else if(trustStorePath != null)
+    {
+      TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      tmf.init(loadKeyStore(trustStorePath, trustStorePassword));
+      trustManagers = tmf.getTrustManagers();
+    }
+
+    context = SSLContext.getInstance("TLS");
+    context.init(keyManagers, trustManagers, null);
+    return context;
+  }
+
+  // Passing the host and port lets JSSE find a session to resume
+  synchronized SSLEngine createEngine ( String host, int port ) throws GeneralSecurityException, IOException
+  {
+    SSLEngine engine = getContext().createSSLEngine(host, port);
+    engine.setUseClientMode(true);
+    if(verifyCertificates)
+    {
+      SSLParameters params = engine.getSSLParameters();
+      params.setEndpointIdentificationAlgorithm("HTTPS");
+      engine.setSSLParameters(params);
+    }
+    return engine;
+  }
+
+  synchronized void handshakeFinished ( long nanos, boolean wasResumed )
+  {
+    lastHandshakeNanos = nanos;
+    lastResumed = wasResumed;
+    handshakes++;
+    if(wasResumed)
+      resumed++;
+  }
+
+  // Time from starting the last handshake to it finishing
+  synchronized public double getLastHandshakeMillis ()
+  {
+    return lastHandshakeNanos / 1000000.0;
+  }
+
+  synchronized public boolean wasLastHandshakeResumed ()
+  {
+    return lastResumed;
+  }
+
+  synchronized public int getHandshakeCount ()
+  {
+    return handshakes;
+  }
+
+  synchronized public int getResumedCount ()
+  {
+    return resumed;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.net.*;
+
+// Moves bytes between an IrcConnection and the server. Whatever thread
+// the transport reads on is the thread the connection's listeners are
+// called on.
+abstract class IrcTransport
+{
+  protected final IrcConnection conn;
+  // If set, open() wraps the connection in TLS and calls conn.connected()
+  // only once the handshake is done
+  protected IrcTls tls;
+
+  IrcTransport ( IrcConnection conn )
+  {
+    this.conn = conn;
+  }
+
+  void setTls ( IrcTls tls )
+  {
+    this.tls = tls;
+  }
+
+  // Start connecting and return immediately. The transport must call
+  // conn.connected() once the socket is up, conn.onCommand() for each
+  // line and finally conn.disconnected() exactly once.
+  abstract void open ( String hostName, int port );
+
+  // May be called from any thread
+  abstract void write ( byte[] b, int off, int len ) throws IOException;
+
+  abstract InetAddress getLocalAddress ();
+
+  // Drop the connection from any thread. conn.disconnected() is then
+  // called with the given reason.
+  abstract void close ( Exception why );
+
+  // Whether connecting again could get anywhere
+  boolean canReconnect ()
+  {
+    return true;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+// Stands in for a server by reading lines from a capture file, see
+// IrcReplay. Anything written is thrown away.
+class ReplayTransport extends IrcTransport
+{
+  private final IrcReplay replay;
+  private volatile boolean closed;
+  private volatile Exception closeReason;
+  private long bytesWritten;
+
+  ReplayTransport ( IrcConnection conn, IrcReplay replay )
+  {
+    super(conn);
+    this.replay = replay;
+  }
+
+  void open ( String hn, int p )
+  {
+    Thread thread = new Thread("IrcReplay")
+      {
+        public void run ()
+        {
+          play();
+        }
+      };
+    thread.start();
+  }
+
+  private void play ()
+  {
+    Exception error = null;
+    IrcCaptureReader in = null;
+    Map before = null;
+    double speed = replay.getSpeed();
+    try
+    {
+      in = new IrcCaptureReader(replay.getFileName());
+      conn.connected();
+      before = IrcReplay.allocationSnapshot();
+      replay.start();
+
+      while(!closed && in.next())
+      {
+        if(speed > 0 && in.getDelayMillis() > 0)
+          Thread.sleep((long)(in.getDelayMillis() / speed));
+        IrcCommand c;
+        try
+        {
+          long parseStart = System.nanoTime();
+          c = new IrcCommand(in.getLine(), 0, in.getLength());
+          conn.getStats().parsed(in.getLength(), System.nanoTime() - parseStart);
+        } catch ( MalformedCommandException e )
+        {
+          // The reader would never have framed it either
+          continue;
+        }
+        conn.onCommand(c);
+        replay.line(in.getLength());
+      }
+
+      // Wait for the asynchronous listeners so their work is counted
+      while(!closed && conn.getEventBus().getLag() > 0)
+        Thread.sleep(1);
+    } catch ( Exception e )
+    {
+      error = e;
+    }
+    replay.finish(IrcReplay.allocatedSince(before), error);
+    if(in != null)
+    {
+      try
+      {
+        in.close();
+      } catch ( IOException e ) {}
+    }
+    if(closeReason != null)
+      error = closeReason;
+    conn.disconnected(error);
+  }
+
+  synchronized void write ( byte[] b, int off, int len )
+  {
+    bytesWritten += len;
+  }
+
+  InetAddress getLocalAddress ()
+  {
+    try
+    {
+      return InetAddress.getByName("127.0.0.1");
+    } catch ( UnknownHostException e )
+    {
+      return null;
+    }
+  }
+
+  void close ( Exception why )
+  {
+    closeReason = why;
+    closed = true;
+  }
+
+  // There is no server to go back to
+  boolean canReconnect ()
+  {
+    return false;
+  }
+}
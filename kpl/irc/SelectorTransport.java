@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// A non-blocking SocketChannel driven by one of an IrcReactor's threads.
+// Everything apart from write() happens on that thread.
+class SelectorTransport extends IrcTransport
+{
+  private static final int WRITE_BUFFER_SIZE = 4096;
+
+  private final IrcReactor.Loop loop;
+  private SocketChannel channel;
+  private SelectionKey key;
+  private final IrcCommandReader in;
+  // Guarded by this. Kept in "fill" mode between writes.
+  private ByteBuffer writeBuf;
+  private boolean interestUpdatePending;
+  private boolean closed;
+  // Guarded by this, as is the codec itself; take this lock first
+  private TlsCodec codec;
+  // Guarded by this. With TLS, what is written before there is a codec
+  // to encrypt it.
+  private ByteArrayOutputStream pending;
+  private ByteBuffer tlsReadBuf;
+  private boolean handshakeDone;
+  private String hostname;
+  private int port;
+
+  SelectorTransport ( IrcConnection conn, IrcReactor reactor )
+  {
+    super(conn);
+    loop = reactor.nextLoop();
+    in = new IrcCommandReader(conn.getStats());
+    writeBuf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    closed = false;
+  }
+
+  void open ( final String hostname, final int port )
+  {
+    final SelectorTransport t = this;
+    loop.execute(this, new Runnable()
+        {
+          public void run ()
+          {
+            t.hostname = hostname;
+            t.port = port;
+            try
+            {
+              channel = SocketChannel.open();
+              channel.configureBlocking(false);
+              key = channel.register(loop.selector, 0, t);
+              // Note this resolves the host name on the selector thread
+              if(channel.connect(new InetSocketAddress(hostname, port)))
+                finishConnect();
+              else
+                key.interestOps(SelectionKey.OP_CONNECT);
+            } catch ( Exception e )
+            {
+              close(e);
+            }
+          }
+        });
+  }
+
+  void onReady ( SelectionKey k )
+  {
+    try
+    {
+      if(k.isValid() && k.isConnectable())
+        finishConnect();
+      if(k.isValid() && k.isWritable())
+        flush();
+      if(k.isValid() && k.isReadable())
+        readCommands();
+    } catch ( Exception e )
+    {
+      close(e);
+    }
+  }
+
+  private void finishConnect () throws Exception
+  {
+    if(!channel.finishConnect())
+      return;
+    if(tls != null)
+    {
+      // connected() waits for the handshake to finish in readTls
+      synchronized(this)
+      {
+        codec = new TlsCodec(tls.createEngine(hostname, port), tls);
+        // The codec holds it until the handshake is done
+        if(pending != null)
+        {
+          byte[] p = pending.toByteArray();
+          pending = null;
+          codec.send(p, 0, p.length);
+        }
+        queueTls();
+      }
+      tlsReadBuf = ByteBuffer.allocate(8192);
+      handshakeDone = false;
+      updateInterest();
+      return;
+    }
+    updateInterest();
+    conn.connected();
+  }
+
+  private int readTls () throws IOException
+  {
+    int n = channel.read(tlsReadBuf);
+    if(n <= 0)
+      return n;
+    byte[] app;
+    synchronized(this)
+    {
+      codec.receive(tlsReadBuf.array(), 0, tlsReadBuf.position());
+      tlsReadBuf.clear();
+      queueTls();
+      app = codec.takeApp();
+    }
+    updateInterest();
+    if(!handshakeDone && codec.isHandshakeDone())
+    {
+      handshakeDone = true;
+      conn.connected();
+    }
+    if(app != null)
+      in.feed(app, 0, app.length);
+    return n;
+  }
+
+  // Must hold the lock
+  private void queueTls ()
+  {
+    byte[] net = codec.takeNet();
+    if(net != null)
+      queue(net, 0, net.length);
+  }
+
+  // Must hold the lock
+  private void queue ( byte[] b, int off, int len )
+  {
+    if(writeBuf.remaining() < len)
+    {
+      ByteBuffer nb = ByteBuffer.allocate(
+          Math.max(writeBuf.capacity() * 2, writeBuf.position() + len));
+      writeBuf.flip();
+      nb.put(writeBuf);
+      writeBuf = nb;
+    }
+    writeBuf.put(b, off, len);
+  }
+
+  private void readCommands () throws Exception
+  {
+    int n = codec != null ? readTls() : in.read(channel);
+    while(!closed)
+    {
+      IrcCommand c;
+      try
+      {
+        c = in.nextCommand();
+      } catch ( MalformedCommandException e )
+      {
+        // The reader has moved past the bad line
+        continue;
+      }
+      if(c == null)
+        break;
+      conn.onCommand(c);
+    }
+    if(n < 0)
+      close(null);
+  }
+
+  private void flush () throws IOException
+  {
+    synchronized(this)
+    {
+      writeBuf.flip();
+      channel.write(writeBuf);
+      writeBuf.compact();
+    }
+    updateInterest();
+  }
+
+  private void updateInterest ()
+  {
+    synchronized(this)
+    {
+      interestUpdatePending = false;
+      if(closed || key == null || !key.isValid() || !channel.isConnected())
+        return;
+      int ops = SelectionKey.OP_READ;
+      if(writeBuf.position() > 0)
+        ops |= SelectionKey.OP_WRITE;
+      key.interestOps(ops);
+    }
+  }
+
+  void write ( byte[] b, int off, int len ) throws IOException
+  {
+    synchronized(this)
+    {
+      if(closed)
+        throw new IOException("Connection closed");
+      if(codec != null)
+      {
+        codec.send(b, off, len);
+        queueTls();
+      } else if(tls != null)
+      {
+        // Nothing goes out in plain text on a TLS connection; there is
+        // nothing to send until finishConnect() makes the codec
+        if(pending == null)
+          pending = new ByteArrayOutputStream();
+        pending.write(b, off, len);
+        return;
+      } else
+      {
+        queue(b, off, len);
+      }
+
+      // Only one wakeup is needed however many lines are queued
+      if(interestUpdatePending)
+        return;
+      interestUpdatePending = true;
+    }
+
+    if(loop.inLoop())
+    {
+      updateInterest();
+    } else
+    {
+      loop.execute(this, new Runnable()
+          {
+            public void run ()
+            {
+              updateInterest();
+            }
+          });
+    }
+  }
+
+  InetAddress getLocalAddress ()
+  {
+    return channel.socket().getLocalAddress();
+  }
+
+  void close ( final Exception why )
+  {
+    if(loop.inLoop())
+    {
+      closeNow(why);
+      return;
+    }
+    loop.execute(this, new Runnable()
+        {
+          public void run ()
+          {
+            closeNow(why);
+          }
+        });
+  }
+
+  private void closeNow ( Exception e )
+  {
+    synchronized(this)
+    {
+      if(closed)
+        return;
+      closed = true;
+    }
+    if(key != null)
+      key.cancel();
+    try
+    {
+      if(channel != null)
+        channel.close();
+    } catch ( IOException ex ) {}
+    conn.disconnected(e);
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.io.*;
+import java.net.*;
+
+// One blocking socket and one thread per connection.
+class ThreadTransport extends IrcTransport
+{
+  private volatile Socket socket;
+  // Guarded by this. Set on the reading thread once the socket is up;
+  // until then, or with TLS until there is a codec to encrypt it,
+  // write() keeps what it is given in pending.
+  private OutputStream out;
+  private ByteArrayOutputStream pending;
+  // Guarded by this
+  private TlsCodec codec;
+  private volatile Exception closeReason;
+
+  ThreadTransport ( IrcConnection conn )
+  {
+    super(conn);
+  }
+
+  void open ( String hn, int p )
+  {
+    final String hostname = hn;
+    final int port = p;
+
+    Thread thread = new Thread()
+      {
+        public void run ()
+        {
+          Exception error = null;
+          try
+          {
+            socket = new Socket(hostname, port);
+            startWriting(socket.getOutputStream());
+            if(tls != null)
+              readTls(hostname, port);
+            else
+              readPlain();
+          } catch (Exception e)
+          {
+            error = e;
+          } finally
+          {
+            // Before disconnected(), which may reconnect on a new socket
+            closeSocket();
+          }
+          // Reading fails once close() shuts the socket; report why
+          if(closeReason != null)
+            error = closeReason;
+          conn.disconnected(error);
+        }
+      };
+    thread.start();
+  }
+
+  // Lets writes through to the socket, first sending anything written
+  // while it was being connected
+  private synchronized void startWriting ( OutputStream o ) throws IOException
+  {
+    out = o;
+    // With TLS it has to wait for the codec
+    if(pending == null || tls != null)
+      return;
+    pending.writeTo(out);
+    out.flush();
+    pending = null;
+  }
+
+  private void readPlain () throws Exception
+  {
+    IrcCommandReader in = new IrcCommandReader(socket.getInputStream(), conn.getStats());
+
+    conn.connected();
+
+    while(true)
+    {
+      IrcCommand c;
+      try
+      {
+        c = in.readCommand();
+      } catch ( MalformedCommandException e )
+      {
+        // The reader has moved past the bad line
+        continue;
+      }
+      if(c == null)
+        return;
+      conn.onCommand(c);
+    }
+  }
+
+  private void readTls ( String hostname, int port ) throws Exception
+  {
+    synchronized(this)
+    {
+      codec = new TlsCodec(tls.createEngine(hostname, port), tls);
+      // The codec holds it until the handshake is done
+      if(pending != null)
+      {
+        byte[] p = pending.toByteArray();
+        pending = null;
+        codec.send(p, 0, p.length);
+      }
+      flushTls();
+    }
+
+    InputStream raw = socket.getInputStream();
+    IrcCommandReader in = new IrcCommandReader(conn.getStats());
+    byte[] b = new byte[8192];
+    boolean handshakeDone = false;
+    int n = raw.read(b);
+    while(n >= 0)
+    {
+      byte[] app;
+      synchronized(this)
+      {
+        codec.receive(b, 0, n);
+        // Handshake messages and alerts need answering straight away
+        flushTls();
+        app = codec.takeApp();
+      }
+      if(!handshakeDone && codec.isHandshakeDone())
+      {
+        handshakeDone = true;
+        conn.connected();
+      }
+      if(app != null)
+      {
+        in.feed(app, 0, app.length);
+        while(true)
+        {
+          IrcCommand c;
+          try
+          {
+            c = in.nextCommand();
+          } catch ( MalformedCommandException e )
+          {
+            continue;
+          }
+          if(c == null)
+            break;
+          conn.onCommand(c);
+        }
+      }
+      n = raw.read(b);
+    }
+  }
+
+  // Must hold the lock
+  private void flushTls () throws IOException
+  {
+    byte[] net = codec.takeNet();
+    if(net != null)
+    {
+      out.write(net);
+      out.flush();
+    }
+  }
+
+  synchronized void write ( byte[] b, int off, int len ) throws IOException
+  {
+    if(codec != null)
+    {
+      codec.send(b, off, len);
+      flushTls();
+      return;
+    }
+    // Nothing goes out in plain text on a TLS connection
+    if(out == null || tls != null)
+    {
+      if(pending == null)
+        pending = new ByteArrayOutputStream();
+      pending.write(b, off, len);
+      return;
+    }
+    out.write(b, off, len);
+    out.flush();
+  }
+
+  void close ( Exception why )
+  {
+    closeReason = why;
+    closeSocket();
+  }
+
+  private void closeSocket ()
+  {
+    try
+    {
+      Socket s = socket;
+      if(s != null)
+        s.close();
+    } catch ( IOException e ) {}
+  }
+
+  InetAddress getLocalAddress ()
+  {
+    return socket.getLocalAddress();
+  }
+}
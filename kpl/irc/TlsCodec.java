@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.irc;
+import java.nio.*;
+import javax.net.ssl.*;
+
+// Drives an SSLEngine for a transport. The transport pushes in whatever
+// it reads from the socket and whatever it wants to send, and takes out
+// the ciphertext to write and the plaintext that was received. Nothing
+// here blocks or touches the socket, so blocking and selector transports
+// can both use it.
+class TlsCodec
+{
+  private final SSLEngine engine;
+  private final IrcTls tls;
+  // All kept in "fill" mode between calls
+  private ByteBuffer netIn, appIn, appOut, netOut;
+  private final long handshakeStart;
+  private final long handshakeStartMillis;
+  private boolean handshakeDone;
+
+  TlsCodec ( SSLEngine engine, IrcTls tls ) throws SSLException
+  {
+    this.engine = engine;
+    this.tls = tls;
+    SSLSession session = engine.getSession();
+    netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+    netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+    appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    appOut = ByteBuffer.allocate(1024);
+    handshakeDone = false;
+    handshakeStart = System.nanoTime();
+    handshakeStartMillis = System.currentTimeMillis();
+    engine.beginHandshake();
+    process();
+  }
+
+  private static ByteBuffer ensureRoom ( ByteBuffer b, int len )
+  {
+    if(b.remaining() >= len)
+      return b;
+    ByteBuffer nb = ByteBuffer.allocate(Math.max(b.capacity() * 2, b.position() + len));
+    b.flip();
+    nb.put(b);
+    return nb;
+  }
+
+  private static byte[] take ( ByteBuffer b )
+  {
+    if(b.position() == 0)
+      return null;
+    b.flip();
+    byte[] out = new byte[b.remaining()];
+    b.get(out);
+    b.clear();
+    return out;
+  }
+
+  // Bytes read from the socket
+  synchronized void receive ( byte[] b, int off, int len ) throws SSLException
+  {
+    netIn = ensureRoom(netIn, len);
+    netIn.put(b, off, len);
+    process();
+  }
+
+  // Plaintext to send. Held until the handshake is done.
+  synchronized void send ( byte[] b, int off, int len ) throws SSLException
+  {
+    appOut = ensureRoom(appOut, len);
+    appOut.put(b, off, len);
+    process();
+  }
+
+  // Ciphertext that should be written to the socket, or null
+  synchronized byte[] takeNet ()
+  {
+    return take(netOut);
+  }
+
+  // Plaintext that has been received, or null
+  synchronized byte[] takeApp ()
+  {
+    return take(appIn);
+  }
+
+  synchronized boolean isHandshakeDone ()
+  {
+    return handshakeDone;
+  }
+
+  private void checkFinished ( SSLEngineResult r )
+  {
+    if(handshakeDone || r.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED)
+      return;
+    handshakeDone = true;
+    // A resumed session was made by an earlier handshake
+    boolean resumed = engine.getSession().getCreationTime() < handshakeStartMillis;
+    tls.handshakeFinished(System.nanoTime() - handshakeStart, resumed);
+  }
+
+  // Wrap and unwrap until the engine can make no more progress
+  private void process () throws SSLException
+  {
+    boolean progress = true;
+    while(progress)
+    {
+      progress = false;
+      SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+
+      if(hs == SSLEngineResult.HandshakeStatus.NEED_TASK)
+      {
+        Runnable task = engine.getDelegatedTask();
+        while(task != null)
+        {
+          task.run();
+          task = engine.getDelegatedTask();
+        }
+        progress = true;
+        continue;
+      }
+
+      boolean handshaking = hs != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+      if(hs == SSLEngineResult.HandshakeStatus.NEED_WRAP
+          || (!handshaking && appOut.position() > 0))
+      {
+        appOut.flip();
+        SSLEngineResult r = engine.wrap(appOut, netOut);
+        appOut.compact();
+        checkFinished(r);
+        if(r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+        {
+          netOut = ensureRoom(netOut, engine.getSession().getPacketBufferSize());
+          progress = true;
+        } else if(r.getStatus() == SSLEngineResult.Status.OK)
+        {
+          progress = r.bytesConsumed() > 0 || r.bytesProduced() > 0
+            || r.getHandshakeStatus() != hs;
+        }
+        continue;
+      }
+
+      if(hs == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+          || (!handshaking && netIn.position() > 0))
+      {
+        netIn.flip();
+        SSLEngineResult r = engine.unwrap(netIn, appIn);
+        netIn.compact();
+        checkFinished(r);
+        if(r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+        {
+          appIn = ensureRoom(appIn, engine.getSession().getApplicationBufferSize());
+          progress = true;
+        } else if(r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+        {
+          // Need more from the socket; make sure a whole record will fit
+          netIn = ensureRoom(netIn, engine.getSession().getPacketBufferSize() - netIn.position());
+        } else if(r.getStatus() == SSLEngineResult.Status.OK)
+        {
+          progress = r.bytesConsumed() > 0 || r.bytesProduced() > 0
+            || r.getHandshakeStatus() != hs;
+        }
+      }
+    }
+  }
+}
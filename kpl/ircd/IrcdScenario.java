@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.ircd;
+import java.io.*;
+import java.util.*;
+
+/**
+ * A script for SyntheticIrcd to play at a client. One directive per
+ * line, lines starting with '#' are comments:
+ *
+ *   seed N                  random seed, for repeatable runs
+ *   users N                 size of the network made at the first join
+ *   channels N [PERUSER]    channels, and how many each user is in
+ *   join                    put the client in every channel, with NAMES
+ *   messages RATE SECONDS   channel PRIVMSGs at RATE lines a second
+ *   netsplit COUNT          COUNT users QUIT in a split, then rejoin
+ *   nickstorm COUNT         COUNT nick changes
+ *   modeflood COUNT         COUNT op/voice MODE lines
+ *   names CHANNEL COUNT     add COUNT users to CHANNEL, then NAMES it
+ *   sleep MILLIS
+ *   repeat N ... end        for soak tests
+ *
+ * Every PRIVMSG's text starts "t=<System.nanoTime()> " so a client in
+ * the same process can measure end to end latency, and after each
+ * directive the client is sent a private "t=<nanos> step N <directive>"
+ * marker. The server PINGs the client after each directive as well.
+ */
+public class IrcdScenario
+{
+  private static final String SPLIT_REASON = "hub.synthetic.test leaf.synthetic.test";
+  private static final int NAMES_LINE_LENGTH = 400;
+
+  private final List steps;
+  private final String name;
+
+  // The made up network, built at the first join
+  private Random random;
+  private long seed;
+  private int numUsers, numChannels, channelsPerUser;
+  private List users, channels;
+  private Map channelsByName;
+  private int nickCounter;
+
+  private static class Step
+  {
+    final String[] args;
+    final int lineNumber;
+    // For repeat
+    final List body;
+
+    Step ( String[] args, int lineNumber, List body )
+    {
+      this.args = args;
+      this.lineNumber = lineNumber;
+      this.body = body;
+    }
+  }
+
+  private static class User
+  {
+    String nick;
+    final String host;
+    final List channels;
+    final boolean op, voice;
+
+    User ( String nick, String host, boolean op, boolean voice )
+    {
+      this.nick = nick;
+      this.host = host;
+      this.op = op;
+      this.voice = voice;
+      channels = new ArrayList();
+    }
+
+    String prefix ()
+    {
+      return nick + "!" + nick.toLowerCase() + "@" + host;
+    }
+  }
+
+  private static class Channel
+  {
+    final String name;
+    final List members;
+
+    Channel ( String name )
+    {
+      this.name = name;
+      members = new ArrayList();
+    }
+  }
+
+  public IrcdScenario ( String fileName ) throws IOException
+  {
+    name = fileName;
+    BufferedReader in = new BufferedReader(new FileReader(fileName));
+    try
+    {
+      int[] lineNumber = new int[1];
+      steps = parse(in, lineNumber, false);
+    } finally
+    {
+      in.close();
+    }
+    seed = 1;
+    numUsers = 100;
+    numChannels = 10;
+    channelsPerUser = 3;
+  }
+
+  public String getName ()
+  {
+    return name;
+  }
+
+  private static List parse ( BufferedReader in, int[] lineNumber, boolean inRepeat ) throws IOException
+  {
+    List out = new ArrayList();
+    String line = in.readLine();
+    while(line != null)
+    {
+      lineNumber[0]++;
+      line = line.trim();
+      // Only whole lines are comments, as channel names start with '#'
+      if(line.length() > 0 && !line.startsWith("#"))
+      {
+        String[] args = line.split("\\s+");
+        if(args[0].equals("end"))
+        {
+          if(!inRepeat)
+            throw new IOException("Line " + lineNumber[0] + ": end without repeat");
+          return out;
+        }
+        if(args[0].equals("repeat"))
+          out.add(new Step(args, lineNumber[0], parse(in, lineNumber, true)));
+        else
+          out.add(new Step(args, lineNumber[0], null));
+      }
+      line = in.readLine();
+    }
+    if(inRepeat)
+      throw new IOException("repeat without end");
+    return out;
+  }
+
+  // Play the whole scenario at one client. Not reentrant.
+  synchronized void run ( SyntheticIrcd.Session s ) throws IOException, InterruptedException
+  {
+    random = new Random(seed);
+    users = null;
+    int[] stepCounter = new int[1];
+    runSteps(s, steps, stepCounter);
+  }
+
+  private void runSteps ( SyntheticIrcd.Session s, List list, int[] stepCounter ) throws IOException, InterruptedException
+  {
+    for(int i=0;i<list.size();i++)
+    {
+      Step step = (Step)list.get(i);
+      try
+      {
+        runStep(s, step, stepCounter);
+      } catch ( NumberFormatException e )
+      {
+        throw new IllegalArgumentException(name + " line " + step.lineNumber + ": bad number " + e.getMessage());
+      } catch ( ArrayIndexOutOfBoundsException e )
+      {
+        throw new IllegalArgumentException(name + " line " + step.lineNumber + ": missing argument");
+      }
+    }
+  }
+
+  private void runStep ( SyntheticIrcd.Session s, Step step, int[] stepCounter ) throws IOException, InterruptedException
+  {
+    String[] a = step.args;
+    String d = a[0];
+    if(d.equals("seed"))
+    {
+      seed = Long.parseLong(a[1]);
+      random = new Random(seed);
+      return;
+    } else if(d.equals("users"))
+    {
+      numUsers = Integer.parseInt(a[1]);
+      return;
+    } else if(d.equals("channels"))
+    {
+      numChannels = Integer.parseInt(a[1]);
+      channelsPerUser = a.length >= 3 ? Integer.parseInt(a[2]) : Math.min(3, numChannels);
+      return;
+    } else if(d.equals("repeat"))
+    {
+      int n = Integer.parseInt(a[1]);
+      for(int i=0;i<n;i++)
+        runSteps(s, step.body, stepCounter);
+      return;
+    }
+
+    if(d.equals("join"))
+    {
+      makeNetwork();
+      for(int i=0;i<channels.size();i++)
+        sendJoinAndNames(s, (Channel)channels.get(i));
+    } else if(d.equals("messages"))
+    {
+      messages(s, Double.parseDouble(a[1]), Double.parseDouble(a[2]));
+    } else if(d.equals("netsplit"))
+    {
+      netsplit(s, Integer.parseInt(a[1]));
+    } else if(d.equals("nickstorm"))
+    {
+      nickstorm(s, Integer.parseInt(a[1]));
+    } else if(d.equals("modeflood"))
+    {
+      modeflood(s, Integer.parseInt(a[1]));
+    } else if(d.equals("names"))
+    {
+      names(s, a[1], Integer.parseInt(a[2]));
+    } else if(d.equals("sleep"))
+    {
+      s.flush();
+      Thread.sleep(Long.parseLong(a[1]));
+    } else
+    {
+      throw new IllegalArgumentException(name + " line " + step.lineNumber + ": unknown directive " + d);
+    }
+
+    stepCounter[0]++;
+    s.ping();
+    s.send(":scenario!scenario@" + SyntheticIrcd.SERVER_NAME + " PRIVMSG " + s.getNick()
+        + " :t=" + System.nanoTime() + " step " + stepCounter[0] + " " + join(a));
+    s.flush();
+  }
+
+  private static String join ( String[] a )
+  {
+    StringBuffer buf = new StringBuffer();
+    for(int i=0;i<a.length;i++)
+    {
+      if(i > 0)
+        buf.append(' ');
+      buf.append(a[i]);
+    }
+    return buf.toString();
+  }
+
+  private void makeNetwork ()
+  {
+    if(users != null)
+      return;
+    users = new ArrayList();
+    channels = new ArrayList();
+    channelsByName = new HashMap();
+    for(int i=0;i<numChannels;i++)
+      addChannel("#load" + i);
+    for(int i=0;i<numUsers;i++)
+    {
+      User u = addUser();
+      for(int j=0;j<channelsPerUser && j<channels.size();j++)
+      {
+        Channel c = (Channel)channels.get(random.nextInt(channels.size()));
+        if(c.members.contains(u))
+          continue;
+        c.members.add(u);
+        u.channels.add(c);
+      }
+    }
+  }
+
+  private Channel addChannel ( String name )
+  {
+    Channel c = new Channel(name);
+    channels.add(c);
+    channelsByName.put(name.toLowerCase(), c);
+    return c;
+  }
+
+  private User addUser ()
+  {
+    int n = users.size();
+    User u = new User("u" + n, "host" + (n % 997) + ".synthetic.test", n % 20 == 0, n % 7 == 0);
+    users.add(u);
+    return u;
+  }
+
+  private User randomUser ()
+  {
+    return (User)users.get(random.nextInt(users.size()));
+  }
+
+  private String namesEntry ( SyntheticIrcd.Session s, User u )
+  {
+    String modes = "";
+    if(s.hasCap("multi-prefix"))
+      modes = (u.op ? "@" : "") + (u.voice ? "+" : "");
+    else if(u.op)
+      modes = "@";
+    else if(u.voice)
+      modes = "+";
+    return modes + (s.hasCap("userhost-in-names") ? u.prefix() : u.nick);
+  }
+
+  private void sendJoinAndNames ( SyntheticIrcd.Session s, Channel c ) throws IOException
+  {
+    s.send(":" + s.getNick() + "!user@127.0.0.1 JOIN " + c.name);
+    sendNames(s, c);
+  }
+
+  private void sendNames ( SyntheticIrcd.Session s, Channel c ) throws IOException
+  {
+    String me = s.getNick();
+    String start = ":" + SyntheticIrcd.SERVER_NAME + " 353 " + me + " = " + c.name + " :";
+    StringBuffer line = new StringBuffer(start).append(me);
+    for(int i=0;i<c.members.size();i++)
+    {
+      String entry = namesEntry(s, (User)c.members.get(i));
+      if(line.length() + 1 + entry.length() > NAMES_LINE_LENGTH)
+      {
+        s.send(line.toString());
+        line.setLength(0);
+        line.append(start).append(entry);
+      } else
+      {
+        line.append(' ').append(entry);
+      }
+    }
+    s.send(line.toString());
+    s.send(":" + SyntheticIrcd.SERVER_NAME + " 366 " + me + " " + c.name + " :End of /NAMES list.");
+  }
+
+  private void messages ( SyntheticIrcd.Session s, double rate, double seconds ) throws IOException, InterruptedException
+  {
+    makeNetwork();
+    final long tickNanos = 10000000;
+    long start = System.nanoTime();
+    long end = start + (long)(seconds * 1e9);
+    long next = start;
+    double owed = 0;
+    boolean tags = s.hasCap("server-time");
+    while(System.nanoTime() < end)
+    {
+      owed += rate * tickNanos / 1e9;
+      while(owed >= 1)
+      {
+        owed--;
+        User u = randomUser();
+        if(u.channels.size() == 0)
+          continue;
+        Channel c = (Channel)u.channels.get(random.nextInt(u.channels.size()));
+        s.send((tags ? "@time=2026-01-01T00:00:00.000Z " : "")
+            + ":" + u.prefix() + " PRIVMSG " + c.name + " :t=" + System.nanoTime()
+            + " the quick brown fox jumps over the lazy dog " + random.nextInt(100000));
+      }
+      s.flush();
+      next += tickNanos;
+      long sleep = (next - System.nanoTime()) / 1000000;
+      if(sleep > 0)
+        Thread.sleep(sleep);
+    }
+  }
+
+  private void netsplit ( SyntheticIrcd.Session s, int count ) throws IOException
+  {
+    makeNetwork();
+    List split = new ArrayList(users);
+    Collections.shuffle(split, random);
+    split = split.subList(0, Math.min(count, split.size()));
+    for(int i=0;i<split.size();i++)
+      s.send(":" + ((User)split.get(i)).prefix() + " QUIT :" + SPLIT_REASON);
+    s.flush();
+    // ... and the split heals
+    for(int i=0;i<split.size();i++)
+    {
+      User u = (User)split.get(i);
+      for(int j=0;j<u.channels.size();j++)
+        s.send(":" + u.prefix() + " JOIN " + ((Channel)u.channels.get(j)).name);
+    }
+  }
+
+  private void nickstorm ( SyntheticIrcd.Session s, int count ) throws IOException
+  {
+    makeNetwork();
+    for(int i=0;i<count;i++)
+    {
+      User u = randomUser();
+      String old = u.prefix();
+      u.nick = "n" + (nickCounter++);
+      s.send(":" + old + " NICK :" + u.nick);
+    }
+  }
+
+  private void modeflood ( SyntheticIrcd.Session s, int count ) throws IOException
+  {
+    makeNetwork();
+    for(int i=0;i<count;i++)
+    {
+      Channel c = (Channel)channels.get(random.nextInt(channels.size()));
+      if(c.members.size() == 0)
+        continue;
+      User a = (User)c.members.get(random.nextInt(c.members.size()));
+      User b = (User)c.members.get(random.nextInt(c.members.size()));
+      User d = (User)c.members.get(random.nextInt(c.members.size()));
+      s.send(":" + SyntheticIrcd.SERVER_NAME + " MODE " + c.name + " +ov-v " + a.nick + " " + b.nick + " " + d.nick);
+    }
+  }
+
+  private void names ( SyntheticIrcd.Session s, String channel, int count ) throws IOException
+  {
+    makeNetwork();
+    Channel c = (Channel)channelsByName.get(channel.toLowerCase());
+    boolean isNew = c == null;
+    if(isNew)
+      c = addChannel(channel);
+    for(int i=0;i<count;i++)
+    {
+      User u = addUser();
+      c.members.add(u);
+      u.channels.add(c);
+    }
+    if(isNew)
+      sendJoinAndNames(s, c);
+    else
+      sendNames(s, c);
+  }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) Matthew Earl
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package kpl.ircd;
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import javax.net.ssl.*;
+
+/**
+ * A stand-in IRC server for load and soak testing the client over
+ * loopback. It speaks just enough RFC 1459 and IRCv3 to get a client
+ * registered (CAP LS/REQ/END, NICK, USER, PING) and then plays an
+ * IrcdScenario at it: a made up network of channels and users, message
+ * floods, netsplits, nick storms and so on. It is a test tool and makes
+ * no attempt to be a real server.
+ *
+ * Given a keystore it speaks TLS instead, for timing handshakes and
+ * checking a reconnect resumes the session; makeKeyStore() makes a
+ * throwaway one for 127.0.0.1.
+ */
+public class SyntheticIrcd
+{
+  static final String SERVER_NAME = "irc.synthetic.test";
+  private static final String PING_TOKEN = "synthetic-";
+  // What we offer in CAP LS; everything asked for is ACKed
+  private static final String CAPS = "message-tags server-time multi-prefix userhost-in-names account-tag";
+
+  private final ServerSocket server;
+  private final IrcdScenario scenario;
+  private Thread acceptThread;
+  private volatile boolean closed;
+  // Round trips of our PINGs, answered by the client's
+  // IrcConnection, in nanoseconds. Guarded by itself.
+  private final List pongTimes;
+
+  public SyntheticIrcd ( IrcdScenario scenario ) throws IOException
+  {
+    this.scenario = scenario;
+    server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    pongTimes = new ArrayList();
+  }
+
+  // Listens for TLS, presenting the first key in the given PKCS12
+  // keystore
+  public SyntheticIrcd ( IrcdScenario scenario, String keyStorePath, String password )
+      throws IOException, GeneralSecurityException
+  {
+    this.scenario = scenario;
+    KeyStore ks = KeyStore.getInstance("PKCS12");
+    InputStream in = new FileInputStream(keyStorePath);
+    try
+    {
+      ks.load(in, password.toCharArray());
+    } finally
+    {
+      in.close();
+    }
+    KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    kmf.init(ks, password.toCharArray());
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(kmf.getKeyManagers(), null, null);
+    server = context.getServerSocketFactory().createServerSocket(0, 50,
+        InetAddress.getByName("127.0.0.1"));
+    pongTimes = new ArrayList();
+  }
+
+  // Makes a PKCS12 keystore holding a new self-signed certificate for
+  // 127.0.0.1, valid for a day, using the JDK's keytool. The file is
+  // deleted when the JVM exits. Clients can use the same file as their
+  // trust store.
+  public static File makeKeyStore ( String password ) throws IOException, InterruptedException
+  {
+    File ks = File.createTempFile("synthetic-ircd", ".p12");
+    ks.delete();
+    ks.deleteOnExit();
+    String keytool = System.getProperty("java.home") + File.separator + "bin"
+      + File.separator + "keytool";
+    ProcessBuilder pb = new ProcessBuilder(new String[] {
+        keytool, "-genkeypair", "-alias", "ircd", "-keyalg", "RSA", "-keysize", "2048",
+        "-validity", "1", "-dname", "CN=" + SERVER_NAME, "-ext", "SAN=ip:127.0.0.1",
+        "-storetype", "PKCS12", "-keystore", ks.getPath(),
+        "-storepass", password, "-keypass", password });
+    pb.redirectErrorStream(true);
+    Process p = pb.start();
+    InputStream out = p.getInputStream();
+    ByteArrayOutputStream said = new ByteArrayOutputStream();
+    byte[] buf = new byte[1024];
+    for(int n=out.read(buf);n >= 0;n=out.read(buf))
+      said.write(buf, 0, n);
+    if(p.waitFor() != 0)
+      throw new IOException("keytool failed: " + said.toString().trim());
+    return ks;
+  }
+
+  // Round trip times of the server's PINGs, in milliseconds
+  public double[] getPingMillis ()
+  {
+    synchronized(pongTimes)
+    {
+      double[] out = new double[pongTimes.size()];
+      for(int i=0;i<out.length;i++)
+        out[i] = ((Long)pongTimes.get(i)).longValue() / 1000000.0;
+      return out;
+    }
+  }
+
+  public int getPort ()
+  {
+    return server.getLocalPort();
+  }
+
+  public void start ()
+  {
+    acceptThread = new Thread("SyntheticIrcd-accept")
+      {
+        public void run ()
+        {
+          try
+          {
+            while(!closed)
+              new Session(server.accept()).start();
+          } catch ( IOException e )
+          {
+            if(!closed)
+              e.printStackTrace();
+          }
+        }
+      };
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  public void close ()
+  {
+    closed = true;
+    try
+    {
+      server.close();
+    } catch ( IOException e ) {}
+  }
+
+  // One connected client. The reading thread answers the client; the
+  // scenario runs on a thread of its own once the client is registered.
+  class Session extends Thread
+  {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+    private String nick;
+    private boolean gotUser, capNegotiating, registered;
+    private final Set caps;
+    private long linesSent;
+
+    Session ( Socket socket ) throws IOException
+    {
+      super("SyntheticIrcd-session");
+      setDaemon(true);
+      this.socket = socket;
+      // Latency should be the client's, not Nagle's
+      socket.setTcpNoDelay(true);
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), 65536);
+      caps = Collections.synchronizedSet(new HashSet());
+    }
+
+    String getNick ()
+    {
+      return nick;
+    }
+
+    boolean hasCap ( String cap )
+    {
+      return caps.contains(cap);
+    }
+
+    // Buffered; call flush() to send
+    synchronized void send ( String line ) throws IOException
+    {
+      out.write(line);
+      out.write("\r\n");
+      linesSent++;
+    }
+
+    synchronized void flush () throws IOException
+    {
+      out.flush();
+    }
+
+    // Checks the client answers PINGs while it is being flooded
+    void ping () throws IOException
+    {
+      send("PING :" + PING_TOKEN + System.nanoTime());
+    }
+
+    synchronized long getLinesSent ()
+    {
+      return linesSent;
+    }
+
+    void close ()
+    {
+      try
+      {
+        socket.close();
+      } catch ( IOException e ) {}
+    }
+
+    public void run ()
+    {
+      try
+      {
+        String line = in.readLine();
+        while(line != null)
+        {
+          handle(line);
+          line = in.readLine();
+        }
+      } catch ( IOException e )
+      {
+        // The client has gone; the scenario thread will find out too
+      }
+      close();
+    }
+
+    private void handle ( String line ) throws IOException
+    {
+      // Only the command and its arguments matter here, not tags
+      if(line.startsWith("@"))
+        line = line.substring(line.indexOf(' ') + 1);
+      String[] args = split(line);
+      if(args.length == 0)
+        return;
+      String cmd = args[0].toUpperCase();
+
+      if(cmd.equals("CAP") && args.length >= 2)
+      {
+        String sub = args[1].toUpperCase();
+        String who = nick != null ? nick : "*";
+        if(sub.equals("LS"))
+        {
+          capNegotiating = true;
+          send(":" + SERVER_NAME + " CAP " + who + " LS :" + CAPS);
+        } else if(sub.equals("REQ") && args.length >= 3)
+        {
+          StringTokenizer tok = new StringTokenizer(args[2], " ");
+          while(tok.hasMoreTokens())
+            caps.add(tok.nextToken());
+          send(":" + SERVER_NAME + " CAP " + who + " ACK :" + args[2]);
+        } else if(sub.equals("END"))
+        {
+          capNegotiating = false;
+        }
+      } else if(cmd.equals("NICK") && args.length >= 2)
+      {
+        if(registered)
+          send(":" + nick + "!user@127.0.0.1 NICK :" + args[1]);
+        nick = args[1];
+      } else if(cmd.equals("USER"))
+      {
+        gotUser = true;
+      } else if(cmd.equals("PING") && args.length >= 2)
+      {
+        send(":" + SERVER_NAME + " PONG " + SERVER_NAME + " :" + args[1]);
+      } else if(cmd.equals("PONG") && args.length >= 2
+          && args[args.length-1].startsWith(PING_TOKEN))
+      {
+        long sent = Long.parseLong(args[args.length-1].substring(PING_TOKEN.length()));
+        synchronized(pongTimes)
+        {
+          pongTimes.add(Long.valueOf(System.nanoTime() - sent));
+        }
+      } else if(cmd.equals("QUIT"))
+      {
+        send("ERROR :Closing Link: 127.0.0.1 (Quit)");
+        flush();
+        close();
+        return;
+      }
+
+      if(!registered && !capNegotiating && gotUser && nick != null)
+      {
+        registered = true;
+        send(":" + SERVER_NAME + " 001 " + nick + " :Welcome to the synthetic network " + nick);
+        send(":" + SERVER_NAME + " 005 " + nick + " CASEMAPPING=rfc1459 PREFIX=(ov)@+"
+            + " CHANMODES=b,k,l,imnpst CHANTYPES=# NICKLEN=30 :are supported by this server");
+        send(":" + SERVER_NAME + " 422 " + nick + " :MOTD File is missing");
+        flush();
+        final Session s = this;
+        Thread t = new Thread("SyntheticIrcd-scenario")
+          {
+            public void run ()
+            {
+              try
+              {
+                scenario.run(s);
+                send("ERROR :Closing Link: 127.0.0.1 (Scenario finished)");
+                flush();
+              } catch ( IOException e )
+              {
+                // Client went away part way through
+              } catch ( InterruptedException e ) {}
+              close();
+            }
+          };
+        t.setDaemon(true);
+        t.start();
+      }
+      flush();
+    }
+  }
+
+  // Split a line into its command and arguments, the trailing argument
+  // included without its ':'. Any prefix is dropped.
+  static String[] split ( String line )
+  {
+    List out = new ArrayList();
+    int i = 0;
+    if(line.startsWith(":"))
+    {
+      i = line.indexOf(' ');
+      if(i < 0)
+        return new String[0];
+    }
+    while(i < line.length())
+    {
+      while(i < line.length() && line.charAt(i) == ' ')
+        i++;
+      if(i >= line.length())
+        break;
+      if(line.charAt(i) == ':')
+      {
+        out.add(line.substring(i + 1));
+        break;
+      }
+      int j = line.indexOf(' ', i);
+      if(j < 0)
+        j = line.length();
+      out.add(line.substring(i, j));
+      i = j;
+    }
+    return (String[])out.toArray(new String[out.size()]);
+  }
+}